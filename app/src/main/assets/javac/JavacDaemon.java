@@ -0,0 +1,189 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Long running javac host. It is compiled and started by the app with the
+ * on-device JDK and runs javac in process through javax.tools, reusing the
+ * same file manager and in-memory source files between builds so only the
+ * first compilation pays for JVM startup and javac class loading. The file
+ * manager keeps the classpath jars it opened, so it is replaced when a jar on
+ * the classpath was rewritten since the last compilation.
+ *
+ * <p>Requests are read from stdin, one per line:
+ * <pre>
+ * O &lt;option&gt;      adds a javac option
+ * F &lt;path&gt;        adds a source file
+ * COMPILE          compiles the options and files given since the last request
+ * EXIT             stops the daemon
+ * </pre>
+ * Every COMPILE is answered on stdout with one line per diagnostic,
+ * {@code D <kind>\t<file>\t<line>\t<column>\t<message>}, followed by
+ * {@code OK} or {@code FAILED}. Tabs, new lines and backslashes in messages
+ * are escaped.
+ *
+ * <p>This file is an asset, it is not compiled with the app since Android
+ * doesn't provide javax.tools.
+ */
+public class JavacDaemon {
+
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+
+    private static final Map<String, SourceFile> sSources = new HashMap<>();
+    private static StandardJavaFileManager sFileManager;
+    // length and modification time of the classpath entries the file manager was used with
+    private static String sClasspathStamp;
+
+    public static void main(String[] args) throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+        // stdout is reserved for responses
+        System.setOut(System.err);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        List<String> options = new ArrayList<>();
+        List<String> files = new ArrayList<>();
+
+        out.println(COMPILER == null ? "UNAVAILABLE" : "READY");
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("O ")) {
+                options.add(line.substring(2));
+            } else if (line.startsWith("F ")) {
+                files.add(line.substring(2));
+            } else if (line.equals("COMPILE")) {
+                compile(options, files, out);
+                options.clear();
+                files.clear();
+            } else if (line.equals("EXIT")) {
+                break;
+            }
+        }
+    }
+
+    private static void compile(List<String> options, List<String> files, PrintStream out) {
+        boolean success;
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try {
+            String classpathStamp = getClasspathStamp(options);
+            if (sFileManager != null && !classpathStamp.equals(sClasspathStamp)) {
+                sFileManager.close();
+                sFileManager = null;
+            }
+            if (sFileManager == null) {
+                sFileManager = COMPILER.getStandardFileManager(null, Locale.getDefault(), StandardCharsets.UTF_8);
+            }
+            sClasspathStamp = classpathStamp;
+            List<JavaFileObject> units = new ArrayList<>();
+            for (String file : files) {
+                units.add(getSource(new File(file)));
+            }
+            success = COMPILER.getTask(null, sFileManager, diagnostics, options, null, units).call();
+        } catch (IOException | RuntimeException e) {
+            out.println("D ERROR\t\t-1\t-1\t" + escape(String.valueOf(e)));
+            success = false;
+        }
+
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            String source = diagnostic.getSource() == null ? "" : diagnostic.getSource().getName();
+            out.println("D " + diagnostic.getKind()
+                    + "\t" + source
+                    + "\t" + diagnostic.getLineNumber()
+                    + "\t" + diagnostic.getColumnNumber()
+                    + "\t" + escape(diagnostic.getMessage(Locale.getDefault())));
+        }
+        out.println(success ? "OK" : "FAILED");
+    }
+
+    /**
+     * @return the path, length and modification time of every classpath entry in the options
+     */
+    private static String getClasspathStamp(List<String> options) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < options.size() - 1; i++) {
+            String option = options.get(i);
+            if (!option.equals("-classpath") && !option.equals("-cp") && !option.equals("--class-path")
+                    && !option.equals("-bootclasspath")) {
+                continue;
+            }
+            for (String path : options.get(i + 1).split(File.pathSeparator)) {
+                File file = new File(path);
+                sb.append(path).append(':').append(file.length()).append(':').append(file.lastModified()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the in-memory copy of a source file, reading it again only if it changed.
+     */
+    private static SourceFile getSource(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        SourceFile source = sSources.get(path);
+        if (source != null
+                && source.mLastModified == file.lastModified()
+                && source.mLength == file.length()) {
+            return source;
+        }
+        source = new SourceFile(file);
+        sSources.put(path, source);
+        return source;
+    }
+
+    private static String escape(String message) {
+        return message.replace("\\", "\\\\")
+                .replace("\t", "\\t")
+                .replace("\n", "\\n")
+                .replace("\r", "");
+    }
+
+    private static class SourceFile extends SimpleJavaFileObject {
+
+        private final String mPath;
+        private final long mLastModified;
+        private final long mLength;
+        private final String mContent;
+
+        SourceFile(File file) throws IOException {
+            super(URI.create("file://" + file.toURI().getRawPath()), Kind.SOURCE);
+            mPath = file.getAbsolutePath();
+            mLastModified = file.lastModified();
+            mLength = file.length();
+            mContent = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String getName() {
+            return mPath;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return mContent;
+        }
+
+        @Override
+        public long getLastModified() {
+            return mLastModified;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.apk.builder;
 
+import android.app.ActivityManager;
 import android.app.Application;
 import android.app.PendingIntent;
 import android.app.AlarmManager;
@@ -7,6 +8,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 
+import com.tyron.compiler.CompilerWarmUp;
+
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -47,6 +50,12 @@ public class ApplicationLoader extends Application {
 		applicationContext = this;
 		applicationHandler = new Handler(applicationContext.getMainLooper());
 		
+		//loads the compilers in the background so the first build doesn't start cold
+		ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+		if (getSharedPreferences("settings", MODE_PRIVATE).getBoolean("compiler_warm_up", true)
+				&& !activityManager.isLowRamDevice()) {
+			CompilerWarmUp.schedule();
+		}
 	}
 	
 	private String getStackTrace(Throwable th){
@@ -14,6 +14,7 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.io.File;
 import java.io.IOException;
@@ -23,6 +24,13 @@ public class AAPT2Compiler extends Compiler {
 	
 	private static final String TAG = "AAPT2";
 	
+	//keep rules for the classes referenced by the manifest and layouts, used by R8
+	public static final String PROGUARD_RULES_FILE_NAME = "aapt-rules.txt";
+	
+	//outputs in bin that outlive a build: compiled library resources, and the previous
+	//APK with its index, which ApkWriter updates in place
+	private static final List<String> KEPT_BIN_FILES = Arrays.asList("res", "gen.apk", "gen.apk.index");
+	
 	private Project mProject;
 	private final File mFilesDir;
 	private List<Library> mLibraries;
@@ -70,7 +78,7 @@ public class AAPT2Compiler extends Compiler {
 		File[] childs = binDir.listFiles();
 	    if (childs != null) {
 			for (File child : childs) {
-				if (child.getName().equals("res")) {
+				if (KEPT_BIN_FILES.contains(child.getName())) {
 					continue;
 				}
 				child.delete();
@@ -181,6 +189,13 @@ public class AAPT2Compiler extends Compiler {
 		   args.add(sb.toString().substring(0, sb.toString().length() -1));
 	   }
 	   
+	   if (mProject.isMinifyEnabled()) {
+		   File rulesFile = new File(mProject.getOutputFile(), "intermediate/" + PROGUARD_RULES_FILE_NAME);
+		   rulesFile.getParentFile().mkdirs();
+		   args.add("--proguard");
+		   args.add(rulesFile.getAbsolutePath());
+	   }
+	   
 	   args.add("-o");
 	   args.add(createNewFile(binDir, "generated.apk.res").getAbsolutePath());
 	   
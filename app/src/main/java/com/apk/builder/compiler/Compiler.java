@@ -1,7 +1,14 @@
 package com.tyron.compiler;
 
+import android.util.Log;
+
 import com.apk.builder.ApplicationLoader;
+import com.apk.builder.model.Library;
 import com.apk.builder.util.Decompress;
+import com.tyron.compiler.abi.AbiJars;
+import com.tyron.compiler.diagnostics.CompilerDiagnostic;
+import com.tyron.compiler.diagnostics.DiagnosticCollector;
+import com.tyron.compiler.env.JarIndex;
 import com.tyron.compiler.exception.CompilerException;
 import java.io.IOException;
 
@@ -13,7 +20,12 @@ public abstract class Compiler {
         void onProgressUpdate(String... update);
     }
 
+    // guards extracting the bundled jars and indexing android.jar, builds and the warm-up both do it
+    private static final Object sJarLock = new Object();
+    private static volatile boolean sAndroidJarIndexed;
+
     protected OnProgressUpdateListener listener;
+    private DiagnosticCollector diagnostics = new DiagnosticCollector();
     private String tag = "unknow";
     private boolean isCompilationSuccessful = true;
 
@@ -27,6 +39,24 @@ public abstract class Compiler {
         }
     }
 
+    /**
+     * Sets where diagnostics are reported, so that every step of a build can share one.
+     */
+    public void setDiagnosticCollector(DiagnosticCollector diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    public DiagnosticCollector getDiagnosticCollector() {
+        return this.diagnostics;
+    }
+
+    /**
+     * @return whether the diagnostic was kept, see {@link DiagnosticCollector#report}
+     */
+    protected boolean report(CompilerDiagnostic diagnostic) {
+        return diagnostics.report(diagnostic);
+    }
+
     public void setTag(String tag) {
         this.tag = tag;
     }
@@ -51,33 +81,85 @@ public abstract class Compiler {
         File check =
                 new File(ApplicationLoader.applicationContext.getFilesDir() + "/temp/android.jar");
 
-        if (check.exists()) {
-            return check;
+        synchronized (sJarLock) {
+            extractFromAssets("android.jar.zip", check);
+
+            if (!sAndroidJarIndexed && check.exists()) {
+                // one time symbol index so compilers don't scan the jar's zip directory every build
+                try {
+                    JarIndex.write(check);
+                    sAndroidJarIndexed = true;
+                } catch (IOException e) {
+                    Log.w(getTag(), "Unable to index android.jar", e);
+                }
+            }
         }
 
-        Decompress.unzipFromAssets(
-                ApplicationLoader.applicationContext,
-                "android.jar.zip",
-                check.getParentFile().getAbsolutePath());
-
         return check;
     }
 
+    /**
+     * Gets the jar to compile against for the given library. This is a stripped
+     * ABI jar when one can be generated, the library's full classes.jar is
+     * still what gets dexed and packaged.
+     */
+    public File getCompileJarFile(Library library) {
+        File classJar = library.getClassJarFile();
+        if (!classJar.exists()) {
+            return classJar;
+        }
+        try {
+            return AbiJars.get(classJar);
+        } catch (IOException e) {
+            Log.w(getTag(), "Unable to extract the ABI of " + library.getName(), e);
+            return classJar;
+        }
+    }
+
     public File getLambdaFactoryFile() {
         File check =
                 new File(
                         ApplicationLoader.applicationContext.getFilesDir()
                                 + "/temp/core-lambda-stubs.jar");
 
-        if (check.exists()) {
-            return check;
+        synchronized (sJarLock) {
+            extractFromAssets("core-lambda-stubs.zip", check);
+        }
+
+        return check;
+    }
+
+    /**
+     * Extracts the jar of a zipped asset, unless it already exists. The zip is
+     * extracted into a temporary directory and the jar is renamed into place,
+     * so an existing jar is always complete even if extracting is interrupted.
+     */
+    private static void extractFromAssets(String asset, File jar) {
+        if (jar.exists()) {
+            return;
         }
 
+        File tempDir = new File(jar.getParentFile(), jar.getName() + ".tmp");
+        deleteRecursively(tempDir);
         Decompress.unzipFromAssets(
                 ApplicationLoader.applicationContext,
-                "core-lambda-stubs.zip",
-                check.getParentFile().getAbsolutePath());
+                asset,
+                tempDir.getAbsolutePath());
 
-        return check;
+        File extracted = new File(tempDir, jar.getName());
+        if (extracted.exists() && !extracted.renameTo(jar)) {
+            Log.w("Compiler", "Unable to move " + extracted + " to " + jar);
+        }
+        deleteRecursively(tempDir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
     }
 }
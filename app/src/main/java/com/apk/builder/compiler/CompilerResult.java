@@ -1,13 +1,42 @@
 package com.tyron.compiler;
 
+import com.tyron.compiler.diagnostics.CompilerDiagnostic;
+import com.tyron.compiler.diagnostics.DiagnosticCollector;
+
+import java.util.Collections;
+import java.util.List;
+
 public class CompilerResult {
 	
 	private boolean isError;
 	private String message;
+	private List<CompilerDiagnostic> diagnostics;
+	private int droppedDiagnosticCount;
 	
 	public CompilerResult(String message, boolean error) {
+		this(message, error, null);
+	}
+	
+	public CompilerResult(String message, boolean error, DiagnosticCollector collector) {
 		this.isError = error;
 		this.message = message;
+		if (collector != null) {
+			this.diagnostics = collector.getDiagnostics();
+			this.droppedDiagnosticCount = collector.getDroppedCount();
+		} else {
+			this.diagnostics = Collections.emptyList();
+		}
+	}
+	
+	public List<CompilerDiagnostic> getDiagnostics() {
+		return diagnostics;
+	}
+	
+	/**
+	 * @return number of diagnostics left out of {@link #getDiagnostics()} because of the limit
+	 */
+	public int getDroppedDiagnosticCount() {
+		return droppedDiagnosticCount;
 	}
 	
 	public String getMessage() {
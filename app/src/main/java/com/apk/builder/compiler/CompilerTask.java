@@ -1,6 +1,7 @@
 package com.apk.builder.compiler;
 
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.app.AlertDialog;
 import android.os.AsyncTask;
 import android.os.Handler;
@@ -8,29 +9,49 @@ import android.os.Looper;
 import android.widget.TextView;
 import android.net.Uri;
 
-import com.android.sdklib.build.ApkBuilder;
+import com.apk.builder.ApplicationLoader;
 import com.apk.builder.FileUtil;
 
 import com.apk.builder.model.*;
 import com.tyron.compiler.AAPT2Compiler;
 import com.tyron.compiler.Compiler;
 import com.tyron.compiler.CompilerResult;
+import com.tyron.compiler.CompilerWarmUp;
+import com.tyron.compiler.apk.ApkSigner;
+import com.tyron.compiler.apk.ApkWriter;
+import com.tyron.compiler.apk.JavaResourceIndex;
+import com.tyron.compiler.R8Compiler;
+import com.tyron.compiler.dex.BaselineProfile;
+import com.tyron.compiler.dex.DexOutput;
+import com.tyron.compiler.diagnostics.DiagnosticCollector;
+import com.tyron.compiler.diagnostics.DiagnosticListener;
 import com.tyron.compiler.incremental.IncrementalECJCompiler;
 import com.tyron.compiler.incremental.IncrementalD8Compiler;
+import com.tyron.compiler.patch.DeltaPatchBuilder;
+import com.tyron.compiler.zip.MappedZipFile;
 
 import java.lang.ref.WeakReference;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.zip.ZipFile;
 
 public class CompilerTask {
 
+    private static final String PROFILE_INSTALLER_CLASS = "androidx/profileinstaller/ProfileInstaller.class";
+
+    private static boolean sFirstBuild = true;
+
     private final WeakReference<Context> mContext;
     private final Handler mHandler;
     private final ExecutorService mExecutor;
     private List<Boolean> compilationSteps;
+    private DiagnosticCollector diagnostics;
+    private DiagnosticListener diagnosticListener;
 
     private TextView progress;
     private long startTime;
@@ -43,6 +64,23 @@ public class CompilerTask {
         compilationSteps = new ArrayList<Boolean>();
     }
 
+    /**
+     * Sets a listener that receives the diagnostics of every build step as they are reported.
+     */
+    public void setDiagnosticListener(DiagnosticListener listener) {
+        this.diagnosticListener = listener;
+    }
+
+    /**
+     * Call after installing the full APK of the last build, so delta patches
+     * are written against it from now on.
+     */
+    public void onApkInstalled() {
+        if (project != null) {
+            DeltaPatchBuilder.resetBaseline(project);
+        }
+    }
+
     public void execute(Project project) {
         onPreExecute();
 
@@ -65,31 +103,50 @@ public class CompilerTask {
         
         try {
             this.project = project;
+            // the warm-up must not compete with a real build
+            CompilerWarmUp.cancel();
+            diagnostics = new DiagnosticCollector();
+            if (diagnosticListener != null) {
+                diagnostics.addListener(diagnosticListener);
+            }
             
 
             if (startAaptCompiler()) {
                 compilationSteps.add(true);
+                // libraries are dexed in the background while the sources compile
+                Compiler d8Compiler = project.isMinifyEnabled()
+                        ? new R8Compiler(project)
+                        : new IncrementalD8Compiler(project);
+                d8Compiler.setDiagnosticCollector(diagnostics);
+                d8Compiler.prepare();
                 if (startEcjCompiler()) {
                     compilationSteps.add(true);
-                    if (startD8Compiler()) {
+                    if (startD8Compiler(d8Compiler)) {
                         compilationSteps.add(true);
                         startBuildApk();
+                        if (project.isDeltaPatchEnabled() && !startDeltaPatchBuilder()) {
+                            //the full APK of this build is what gets installed now
+                            DeltaPatchBuilder.resetBaseline(project);
+                            project.getLogger().e("APK Builder", "Unable to write the delta patch, reinstall the APK instead");
+                        }
                     }
                 }
             }
-            project.getLogger().d("APK Signer", "Signing Apk");
-			String path_ = project.getOutputFile() + "/bin/gen.apk";
-            
-            //assinarApk(mContext.get(), new java.io.File(path_));
-			// signFile(new java.io.File(path_));
             
             long time = System.currentTimeMillis() - startTime;
+            if (sFirstBuild) {
+                sFirstBuild = false;
+                long warmUpTime = CompilerWarmUp.getWarmUpTime();
+                project.getLogger().d("APK Builder", "First build since launch, " + (warmUpTime == -1
+                        ? "compilers were not warmed up"
+                        : "compilers were warmed up in " + warmUpTime + "ms"));
+            }
             if(compilationSteps.size() == 3){
                 project.getLogger().d("APK Builder", "Build success, took " + time + "ms");
-                compilerResult = new CompilerResult("Success", false);
+                compilerResult = new CompilerResult("Success", false, diagnostics);
             }else{
                 project.getLogger().d("APK Builder", "Build failed, took " + time + "ms");
-                compilerResult = new CompilerResult("Failed", true);
+                compilerResult = new CompilerResult("Failed", true, diagnostics);
             }
 
         } catch (Exception e) {
@@ -100,6 +157,7 @@ public class CompilerTask {
 
     private boolean startAaptCompiler() throws Exception{
         Compiler aapt2Compiler = new AAPT2Compiler(project);
+            aapt2Compiler.setDiagnosticCollector(diagnostics);
             aapt2Compiler.setProgressListener(
                     args -> publishProgress(aapt2Compiler.getTag(), args));
             aapt2Compiler.prepare();
@@ -110,6 +168,7 @@ public class CompilerTask {
     }
     private boolean startEcjCompiler () throws Exception{
         Compiler ecjCompiler = new IncrementalECJCompiler(project);
+            ecjCompiler.setDiagnosticCollector(diagnostics);
             ecjCompiler.setProgressListener(args -> publishProgress(ecjCompiler.getTag(),args));
             ecjCompiler.prepare();
             ecjCompiler.run();
@@ -117,51 +176,125 @@ public class CompilerTask {
         return ecjCompiler.getIsCompilationSuccessful();
     }
     
-    private boolean startD8Compiler() throws Exception{
-        Compiler d8Compiler = new IncrementalD8Compiler(project);
+    private boolean startD8Compiler(Compiler d8Compiler) throws Exception{
             d8Compiler.setProgressListener(args -> publishProgress(d8Compiler.getTag(),args));
-            d8Compiler.prepare();
             d8Compiler.run();
         
         return d8Compiler.getIsCompilationSuccessful();
     }
     
+    private boolean startDeltaPatchBuilder() throws Exception {
+        Compiler patchBuilder = new DeltaPatchBuilder(project);
+        patchBuilder.setDiagnosticCollector(diagnostics);
+        patchBuilder.setProgressListener(args -> publishProgress(patchBuilder.getTag(), args));
+        patchBuilder.prepare();
+        patchBuilder.run();
+        
+        return patchBuilder.getIsCompilationSuccessful();
+    }
+    
     private void startBuildApk() throws Exception{
         publishProgress("APK Builder", "Packaging APK...");
-                        project.getLogger().d("APK Builder", "Packaging APK");
-
-                        File binDir = new File(project.getOutputFile(), "bin");
-                        File apkPath = new File(binDir, "gen.apk");
-                        apkPath.createNewFile();
-
-                        File resPath = new File(binDir, "generated.apk.res");
-                        File dexFile = new File(binDir, "classes.dex");
-                        ApkBuilder builder = new ApkBuilder(apkPath, resPath, dexFile, null, null);
-
-                        File[] binFiles = binDir.listFiles();
-                        for (File file : binFiles) {
-                            if (!file.getName().equals("classes.dex")
-                                    && file.getName().endsWith(".dex")) {
-                                builder.addFile(
-                                        file,
-                                        Uri.parse(file.getAbsolutePath()).getLastPathSegment());
-                                project.getLogger()
-                                        .d(
-                                                "APK Builder",
-                                                "Adding dex file " + file.getName() + " to APK.");
-                            }
-                        }
-                        for (Library library : project.getLibraries()) {
-                            builder.addResourcesFromJar(new File(library.getPath(), "classes.jar"));
-                            project.getLogger()
-                                    .d(
-                                            "APK Builder",
-                                            "Adding resources of "
-                                                    + library.getName()
-                                                    + " to the APK");
-                        }
-                        builder.setDebugMode(false);
-                        builder.sealApk();
+        project.getLogger().d("APK Builder", "Packaging APK");
+
+        File binDir = new File(project.getOutputFile(), "bin");
+        File apkPath = new File(binDir, "gen.apk");
+        File resPath = new File(binDir, "generated.apk.res");
+
+        ApkWriter writer = new ApkWriter(apkPath, createSigner());
+        //the resource apk and library resources are copied without recompressing their entries
+        writer.addZipEntries(new MappedZipFile(resPath), null);
+        //dex files are added in multidex order, they are compressed in parallel. They are read
+        //from bin since the dexer reuses cached dex across builds instead of keeping bytes in memory
+        for (int i = 0; new File(binDir, DexOutput.getDexFileName(i)).exists(); i++) {
+            writer.addFile(DexOutput.getDexFileName(i), new File(binDir, DexOutput.getDexFileName(i)), true);
+        }
+        File baselineProfileFile = project.getBaselineProfileFile();
+        if (baselineProfileFile != null && baselineProfileFile.exists()) {
+            addBaselineProfile(writer, binDir, baselineProfileFile);
+        }
+        //library jars are only scanned once per version, their resources are cached by jar hash
+        JavaResourceIndex javaResources = new JavaResourceIndex();
+        for (Library library : project.getLibraries()) {
+            if (library.getClassJarFile().exists()) {
+                javaResources.addJar(library.getName(), library.getClassJarFile());
+            }
+        }
+        javaResources.addTo(writer);
+        List<String> duplicateResources = javaResources.getDuplicates();
+        if (!duplicateResources.isEmpty()) {
+            project.getLogger().w("APK Builder", duplicateResources.size() + " Java resource(s) are in more than one library, "
+                    + "only the first was packaged: " + duplicateResources);
+        }
+        project.getLogger().d("APK Signer", "Signing Apk");
+        writer.close();
+        project.getLogger().d("APK Builder", writer.isUpdatedInPlace()
+                ? "Updated the changed entries of the previous APK"
+                : "Wrote a new APK");
+
+        for (String name : writer.getDuplicates()) {
+            project.getLogger().w("APK Builder", "Duplicate entry " + name + ", only the first one was packaged");
+        }
+    }
+
+    /**
+     * Debug builds are signed with the AOSP testkey in assets/keys (keys/testkey.pk8 and
+     * keys/testkey.x509.pem), not with the platform key next to it.
+     */
+    private ApkSigner createSigner() throws Exception {
+        AssetManager assets = ApplicationLoader.applicationContext.getAssets();
+        try (InputStream key = assets.open("keys/testkey.pk8");
+             InputStream certificate = assets.open("keys/testkey.x509.pem")) {
+            return ApkSigner.fromPk8(key, certificate, project.getMinSdk());
+        }
+    }
+
+    /**
+     * Compiles the baseline profile against the dex files of this build and adds it
+     * under assets/dexopt. Installing the APK doesn't apply it, only androidx.profileinstaller
+     * in the app hands it to ART, after the first launch.
+     */
+    private void addBaselineProfile(ApkWriter writer, File binDir, File profileFile) throws Exception {
+        if (!hasProfileInstaller()) {
+            project.getLogger().w("APK Builder", "No androidx.profileinstaller library, the baseline profile "
+                    + "is packaged but ignored on devices the APK is side-loaded to");
+        }
+        List<File> dexFiles = new ArrayList<>();
+        for (int i = 0; new File(binDir, DexOutput.getDexFileName(i)).exists(); i++) {
+            dexFiles.add(new File(binDir, DexOutput.getDexFileName(i)));
+        }
+        BaselineProfile profile = BaselineProfile.compile(profileFile, dexFiles);
+        
+        File dexoptDir = new File(binDir, "dexopt");
+        File profFile = new File(dexoptDir, "baseline.prof");
+        File profmFile = new File(dexoptDir, "baseline.profm");
+        profile.writeProfile(profFile);
+        profile.writeMetadata(profmFile);
+        writer.addFile(BaselineProfile.PROFILE_PATH, profFile, true);
+        writer.addFile(BaselineProfile.METADATA_PATH, profmFile, true);
+        
+        project.getLogger().d("APK Builder", "Adding baseline profile, " + profile.getMatchedRuleCount()
+                + " rule(s) matched, " + profile.getUnmatchedRuleCount() + " not found in the dex files");
+    }
+
+    /**
+     * @return whether a library of the project has androidx.profileinstaller, which
+     * installs the packaged baseline profile
+     */
+    private boolean hasProfileInstaller() {
+        for (Library library : project.getLibraries()) {
+            if (!library.getClassJarFile().exists()) {
+                continue;
+            }
+            try (ZipFile zip = new ZipFile(library.getClassJarFile())) {
+                if (zip.getEntry(PROFILE_INSTALLER_CLASS) != null) {
+                    return true;
+                }
+            } catch (IOException e) {
+                // not a readable jar, it can't provide it either
+            }
+        }
+        return false;
     }
 
     private void publishProgress(String Tag, String... updates) {
@@ -192,17 +325,4 @@ public class CompilerTask {
         mExecutor.shutdown();
     }
     
-    /*private void signedFile(final File file){
-		try {
-			String outFile =file.getAbsolutePath();
-			FileUtil.makeDir(FileUtil.getExternalStorageDir().concat("/APK Signer/"));
-			out = FileUtil.getExternalStorageDir().concat("/APK Signer/".concat(Uri.parse(outFile).getLastPathSegment().replace(".apk", "").concat("-signed.apk")));
-			apksigner.Main.sign(file,out);
-			SketchwareUtil.showMessage(getApplicationContext(), "Success - ".concat(out));
-		} catch (Exception e) {
-			SketchwareUtil.showMessage(getApplicationContext(), e.toString());
-		}
-	}*/
-    
-    
 }
\ No newline at end of file
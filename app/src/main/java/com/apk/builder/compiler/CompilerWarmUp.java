@@ -0,0 +1,162 @@
+package com.tyron.compiler;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.apk.builder.ApplicationLoader;
+import com.apk.builder.FileUtil;
+import com.apk.builder.logger.Logger;
+import com.apk.builder.model.Project;
+import com.tyron.compiler.apk.ApkSigner;
+import com.tyron.compiler.apk.ApkWriter;
+import com.tyron.compiler.incremental.IncrementalD8Compiler;
+import com.tyron.compiler.incremental.IncrementalECJCompiler;
+import com.tyron.compiler.zip.MappedZipFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Compiles and dexes a tiny project in the background when the app starts, so
+ * the first real build doesn't pay for loading ECJ, D8 and the packaging
+ * classes, or for opening android.jar. Everything loaded stays in the shared
+ * caches of the compilers.
+ *
+ * <p>Starting a build cancels a warm-up that is still running and waits for
+ * its current step to finish, it only ever runs while the user is not waiting
+ * on a build.
+ */
+public class CompilerWarmUp {
+
+    private static final String TAG = "CompilerWarmUp";
+
+    private static final String SOURCE =
+            "package warmup;\n"
+                    + "\n"
+                    + "import java.util.ArrayList;\n"
+                    + "import java.util.List;\n"
+                    + "\n"
+                    + "public class WarmUp {\n"
+                    + "    public static List<String> run() {\n"
+                    + "        List<String> list = new ArrayList<>();\n"
+                    + "        Runnable runnable = () -> list.add(String.valueOf(list.size()));\n"
+                    + "        runnable.run();\n"
+                    + "        return list;\n"
+                    + "    }\n"
+                    + "}\n";
+
+    private static volatile Thread sThread;
+    private static volatile boolean sCancelled;
+    private static volatile long sWarmUpTime = -1;
+
+    /**
+     * Starts the warm-up on a low priority thread, does nothing if one already ran.
+     */
+    public static synchronized void schedule() {
+        if (sThread != null) {
+            return;
+        }
+        sThread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            long start = SystemClock.elapsedRealtime();
+            try {
+                warmUp();
+                if (!sCancelled) {
+                    sWarmUpTime = SystemClock.elapsedRealtime() - start;
+                    Log.d(TAG, "Compilers warmed up in " + sWarmUpTime + "ms");
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Warm-up failed", e);
+            }
+        }, TAG);
+        sThread.start();
+    }
+
+    /**
+     * Stops a running warm-up after its current step and waits for it, so it
+     * doesn't compete with a real build or leave files half written for it.
+     */
+    public static void cancel() {
+        sCancelled = true;
+        Thread thread = sThread;
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return how long the warm-up took, or -1 if it didn't complete
+     */
+    public static long getWarmUpTime() {
+        return sWarmUpTime;
+    }
+
+    private static void warmUp() throws Exception {
+        File dir = new File(ApplicationLoader.applicationContext.getCacheDir(), "warm-up");
+        File outputDir = new File(dir, "out");
+        // the previous output would make the incremental compilers skip everything
+        FileUtil.deleteFile(outputDir.getAbsolutePath());
+        new File(outputDir, "bin").mkdirs();
+
+        File sourceDir = new File(dir, "src");
+        writeSource(new File(sourceDir, "warmup/WarmUp.java"));
+
+        Project project = new Project();
+        project.setJavaFile(sourceDir);
+        project.setOutputFile(outputDir);
+        project.setMinSdk(21);
+        project.setLibraries(new ArrayList<>());
+        project.setLogger(new Logger() {
+            @Override
+            public void d(String tag, String message) {
+
+            }
+
+            @Override
+            public void e(String tag, String message) {
+                Log.w(TAG, tag + ": " + message);
+            }
+
+            @Override
+            public void w(String tag, String message) {
+
+            }
+        });
+
+        Compiler[] compilers = {
+                new IncrementalECJCompiler(project),
+                new IncrementalD8Compiler(project)
+        };
+        for (Compiler compiler : compilers) {
+            if (sCancelled) {
+                return;
+            }
+            compiler.prepare();
+            compiler.run();
+        }
+
+        if (!sCancelled) {
+            // packaging happens last in a build, only load its classes
+            Class.forName(ApkWriter.class.getName());
+            Class.forName(ApkSigner.class.getName());
+            Class.forName(MappedZipFile.class.getName());
+        }
+    }
+
+    private static void writeSource(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(SOURCE.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
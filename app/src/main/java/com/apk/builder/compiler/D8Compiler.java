@@ -2,13 +2,21 @@ package com.tyron.compiler;
 
 import com.apk.builder.model.Project;
 import com.apk.builder.model.Library;
+import com.tyron.compiler.dex.D8DiagnosticsHandler;
+import com.tyron.compiler.dex.DexOutput;
+import com.tyron.compiler.dex.LibraryDexCache;
+import com.tyron.compiler.dex.StartupProfile;
 import com.tyron.compiler.exception.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.android.tools.r8.CompilationFailedException;
+import com.android.tools.r8.CompilationMode;
 import com.android.tools.r8.D8;
+import com.android.tools.r8.D8Command;
 
 public class D8Compiler extends Compiler {
     
@@ -31,86 +39,54 @@ public class D8Compiler extends Compiler {
         onProgressUpdate("Running...");
 		//mProject.getLogger().d(TAG, "Running...");
      
-        List<String> args = new ArrayList<>();
-        
-        args.add("--release");
-        args.add("--min-api"); 
-        args.add(String.valueOf(mProject.getMinSdk()));
-        args.add("--lib");
-        args.add(getAndroidJarFile().getAbsolutePath());
-        args.add("--output");
-        args.add(mProject.getOutputFile() + "/bin/");
+        D8DiagnosticsHandler diagnostics = new D8DiagnosticsHandler(getDiagnosticCollector(), mProject.getLogger(), TAG);
+        DexOutput output = new DexOutput();
+        D8Command.Builder builder = D8Command.builder(diagnostics)
+                .setMode(CompilationMode.RELEASE)
+                .setMinApiLevel(mProject.getMinSdk())
+                .addLibraryFiles(getAndroidJarFile().toPath())
+                .setProgramConsumer(output);
         
         List<File> classes = getClassFiles(new File(mProject.getOutputFile() + "/bin/classes/"));
 		for (File file : classes) {
-		    args.add(file.getAbsolutePath());
+		    builder.addProgramFiles(file.toPath());
 		}
 		
 		for (Library library : mProject.getLibraries()) {
-			
-			if (library.getDexFiles().isEmpty()) {
-				try {
-				    dexLibrary(library);
-				} catch (Exception e) {
-				  //  throw new CompilerException(e.getMessage());
-                    mProject.getLogger().e(TAG, e.getMessage());
-                    setIsCompilationSuccessful(false);
-				}
+			if (!library.getClassJarFile().exists()) {
+				continue;
+			}
+			try {
+			    for (File dexFile : LibraryDexCache.submit(library.getClassJarFile(), mProject.getMinSdk(),
+			            getAndroidJarFile(), diagnostics).get()) {
+			        builder.addProgramFiles(dexFile.toPath());
+			    }
+			} catch (Exception e) {
+			  //  throw new CompilerException(e.getMessage());
+                mProject.getLogger().e(TAG, library.getName() + ": " + e.getMessage());
+                setIsCompilationSuccessful(false);
 			}
-            for (File dexFile : library.getDexFiles()) {
-                args.add(dexFile.getAbsolutePath());
-            }
-        }
-        
-        try {
-            D8.main(args.toArray(new String[0]));
-        } catch (Exception e) {
-            //throw new CompilerException(e.getMessage());
-            mProject.getLogger().e(TAG, e.getMessage());
-            setIsCompilationSuccessful(false);
-        }
-        
-        args.clear();
-       /* onProgressUpdate("D8 > Merging dex files");
-        
-        for (File file : getDexFiles()) {
-            args.add(file.getAbsolutePath());
         }
-        args.add("--output");
-		
-		File dexPath = new File(mProject.getWorkingDirectory() + "/bin/dex/");
-		dexPath.mkdirs();
-        args.add(dexPath.getAbsolutePath());
         
-        for (Library library : mProject.getLibraries()) {
-            for (File dexFile : library.getDexFiles()) {
-                args.add(dexFile.getAbsolutePath());
+        File startupProfileFile = mProject.getStartupProfileFile();
+        if (startupProfileFile != null && startupProfileFile.exists()) {
+            try {
+                builder.addStartupProfileProviders(StartupProfile.read(startupProfileFile).toProvider());
+            } catch (IOException e) {
+                mProject.getLogger().w(TAG, "Unable to read the startup profile: " + e.getMessage());
             }
         }
-        try {
-            D8.main(args.toArray(new String[0]));
-        } catch (Exception e) {
-            throw new CompilerException(e.getMessage());
-        }*/
-        
-    }
-    
-    public List<File> getDexFiles() {
-        List<File> files = new ArrayList<>();
-        
-        File[] fileArr = new File(mProject.getOutputFile(), "/bin/classes/").listFiles();
-        
-        if (fileArr == null) {
-            return files;
-        }
         
-        for (File file : fileArr) {
-            if (file.getName().startsWith("classes") && file.getName().endsWith(".dex")) {
-                files.add(file);
+        try {
+            D8.run(builder.build());
+            output.writeTo(new File(mProject.getOutputFile(), "bin"));
+        } catch (CompilationFailedException | IOException e) {
+            //throw new CompilerException(e.getMessage());
+            if (e instanceof IOException) {
+                mProject.getLogger().e(TAG, e.getMessage());
             }
+            setIsCompilationSuccessful(false);
         }
-        
-        return files;
     }
     
     private List<File> getClassFiles(File dir) {
@@ -130,23 +106,4 @@ public class D8Compiler extends Compiler {
         
         return files;
     }
-	
-	private void dexLibrary(Library library) throws Exception {
-		
-	//	mProject.getLogger().d(TAG, 
-         onProgressUpdate("Library " + library.getName() + " does not have a dex file, generating one");
-		
-		List<String> args = new ArrayList<>();
-		args.add("--release");
-        args.add("--min-api"); 
-        args.add(String.valueOf(mProject.getMinSdk()));
-		args.add("--lib");
-		args.add(getAndroidJarFile().getAbsolutePath());
-		args.add("--output");
-		args.add(library.getPath().getAbsolutePath());
-		args.add(library.getClassJarFile().getAbsolutePath());
-	
-        D8.main(args.toArray(new String[0]));
-        
-	}
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.tyron.compiler;
 
+import com.tyron.compiler.diagnostics.CompilerDiagnostic;
 import com.tyron.compiler.exception.CompilerException;
 
 import com.apk.builder.FileUtil;
@@ -8,6 +9,10 @@ import com.apk.builder.model.Project;
 import com.apk.builder.model.Library;
 import com.apk.builder.ApplicationLoader;
 
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
+import org.eclipse.jdt.internal.compiler.batch.BatchCompilerRequestor;
 import org.eclipse.jdt.internal.compiler.batch.Main;
 
 import java.io.BufferedReader;
@@ -25,6 +30,9 @@ public class ECJCompiler extends Compiler {
 	
 	private Project mProject;
 	
+	//the diagnostic collector is shared by the whole build, errors of this step are tracked here
+	private boolean mHasErrors;
+	
 	public ECJCompiler(Project project) {
 		mProject = project;
         setTag(TAG);
@@ -83,13 +91,36 @@ public class ECJCompiler extends Compiler {
 			args.add(resourceFile.getAbsolutePath());
 		}
 		
-		Main main = new Main(outWriter, errWriter, false, null, null);
+		mHasErrors = false;
+		Main main = new Main(outWriter, errWriter, false, null, null) {
+			@Override
+			public ICompilerRequestor getBatchRequestor() {
+				return new BatchCompilerRequestor(this) {
+					@Override
+					protected void reportProblems(CompilationResult result) {
+						if (result.hasErrors()) {
+							mHasErrors = true;
+						}
+						//problems are reported as diagnostics instead of being printed
+						CategorizedProblem[] problems = result.getProblems();
+						if (problems == null) {
+							return;
+						}
+						for (CategorizedProblem problem : problems) {
+							CompilerDiagnostic diagnostic = CompilerDiagnostic.from(problem);
+							if (report(diagnostic) && diagnostic.isError()) {
+								mProject.getLogger().e(TAG, diagnostic.toString());
+							}
+						}
+					}
+				};
+			}
+		};
 		
 		main.compile(args.toArray(new String[0]));
 		
-		if (main.globalErrorsCount > 0) {
+		if (main.globalErrorsCount > 0 || mHasErrors) {
 			//throw new CompilerException(errorOutputStream.buffer.toString());
-            mProject.getLogger().e(TAG, errorOutputStream.buffer.toString());
             setIsCompilationSuccessful(false);
 		}
 		
@@ -0,0 +1,201 @@
+package com.tyron.compiler;
+
+import com.apk.builder.model.Project;
+import com.apk.builder.model.Library;
+import com.tyron.compiler.cache.BuildCache;
+import com.tyron.compiler.cache.Fingerprint;
+import com.tyron.compiler.dex.D8DiagnosticsHandler;
+import com.tyron.compiler.dex.DexOutput;
+import com.tyron.compiler.exception.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.android.tools.r8.CompilationFailedException;
+import com.android.tools.r8.CompilationMode;
+import com.android.tools.r8.R8;
+import com.android.tools.r8.R8Command;
+import com.android.tools.r8.Version;
+
+/**
+ * Shrinks, optimizes and dexes the app with its libraries for release builds.
+ * Keep rules come from the project, from aapt2 for the classes its manifest
+ * and layouts reference, and from the consumer rules of every library.
+ *
+ * <p>R8 analyzes the whole program at once, so its output is cached in the
+ * build cache under a key made of the hashes of every input: class files,
+ * library jars, rules, the min api level and the R8 version. A release build
+ * whose inputs didn't change copies the cached dex instead of running R8.
+ */
+public class R8Compiler extends Compiler {
+
+	private static final String TAG = "R8";
+
+	private static final String CACHE_NAME = "r8";
+	//release outputs are large, only the most recent ones are kept
+	private static final int MAX_CACHE_ENTRIES = 3;
+	private static final String MAPPING_FILE_NAME = "mapping.txt";
+
+    private Project mProject;
+
+    public R8Compiler(Project project) {
+        mProject = project;
+        setTag(TAG);
+    }
+
+    @Override
+    public void prepare() {
+
+    }
+
+    @Override
+    public void run() throws CompilerException, IOException {
+        onProgressUpdate("Running...");
+
+        List<File> classFiles = getClassFiles(new File(mProject.getOutputFile(), "intermediate/classes"));
+        Collections.sort(classFiles);
+        List<File> libraryJars = new ArrayList<>();
+        List<File> rulesFiles = new ArrayList<>();
+        if (mProject.getProguardRulesFile() != null && mProject.getProguardRulesFile().exists()) {
+            rulesFiles.add(mProject.getProguardRulesFile());
+        }
+        File aaptRulesFile = new File(mProject.getOutputFile(), "intermediate/" + AAPT2Compiler.PROGUARD_RULES_FILE_NAME);
+        if (aaptRulesFile.exists()) {
+            rulesFiles.add(aaptRulesFile);
+        }
+        for (Library library : mProject.getLibraries()) {
+            if (library.getClassJarFile().exists()) {
+                libraryJars.add(library.getClassJarFile());
+            }
+            if (library.getProguardRulesFile().exists()) {
+                rulesFiles.add(library.getProguardRulesFile());
+            }
+        }
+
+        MessageDigest digest = Fingerprint.newDigest();
+        digest.update((Version.getVersionString() + "\n" + mProject.getMinSdk() + "\n").getBytes(StandardCharsets.UTF_8));
+        for (List<File> files : Arrays.asList(classFiles, libraryJars, rulesFiles)) {
+            for (File file : files) {
+                digest.update((file.getAbsolutePath() + "=" + Fingerprint.of(file) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        File cacheDir = BuildCache.getDirectory(CACHE_NAME);
+        File entryDir = new File(cacheDir, Fingerprint.toHex(digest.digest()));
+
+        if (entryDir.isDirectory()) {
+            mProject.getLogger().d(TAG, "Inputs are unchanged since a previous release build, using its output");
+            //marks the entry as recently used
+            entryDir.setLastModified(System.currentTimeMillis());
+        } else {
+            mProject.getLogger().d(TAG, "Shrinking " + classFiles.size() + " class file(s) and "
+                    + libraryJars.size() + " library jar(s) with " + rulesFiles.size() + " rules file(s)");
+
+            //written next to the entry first so a partial entry is never seen as valid
+            File tempDir = new File(entryDir.getPath() + ".tmp");
+            deleteDirectory(tempDir);
+            tempDir.mkdirs();
+
+            DexOutput output = new DexOutput();
+            try {
+                List<Path> programFiles = new ArrayList<>();
+                for (File file : classFiles) {
+                    programFiles.add(file.toPath());
+                }
+                for (File file : libraryJars) {
+                    programFiles.add(file.toPath());
+                }
+                List<Path> configurationFiles = new ArrayList<>();
+                for (File file : rulesFiles) {
+                    configurationFiles.add(file.toPath());
+                }
+                R8.run(R8Command.builder(new D8DiagnosticsHandler(getDiagnosticCollector(), mProject.getLogger(), TAG))
+                        .setMode(CompilationMode.RELEASE)
+                        .setMinApiLevel(mProject.getMinSdk())
+                        .addLibraryFiles(getAndroidJarFile().toPath())
+                        .addProgramFiles(programFiles)
+                        .addProguardConfigurationFiles(configurationFiles)
+                        .setProguardMapOutputPath(new File(tempDir, MAPPING_FILE_NAME).toPath())
+                        .setProgramConsumer(output)
+                        .build());
+            } catch (CompilationFailedException e) {
+                deleteDirectory(tempDir);
+                setIsCompilationSuccessful(false);
+                return;
+            }
+
+            output.writeTo(tempDir);
+            if (!tempDir.renameTo(entryDir)) {
+                deleteDirectory(tempDir);
+                throw new IOException("Unable to write " + entryDir);
+            }
+            trimCache(cacheDir);
+        }
+
+        File binDir = new File(mProject.getOutputFile(), "bin");
+        File[] binFiles = binDir.listFiles();
+        if (binFiles != null) {
+            for (File file : binFiles) {
+                if (file.getName().startsWith("classes") && file.getName().endsWith(".dex")) {
+                    file.delete();
+                }
+            }
+        }
+        File[] entryFiles = entryDir.listFiles();
+        if (entryFiles != null) {
+            for (File file : entryFiles) {
+                Files.copy(file.toPath(), new File(binDir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries above {@link #MAX_CACHE_ENTRIES}.
+     */
+    private void trimCache(File cacheDir) {
+        File[] entries = cacheDir.listFiles(file -> file.isDirectory() && !file.getName().endsWith(".tmp"));
+        if (entries == null || entries.length <= MAX_CACHE_ENTRIES) {
+            return;
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        for (int i = MAX_CACHE_ENTRIES; i < entries.length; i++) {
+            deleteDirectory(entries[i]);
+        }
+    }
+
+    private void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private List<File> getClassFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        File[] fileArr = dir.listFiles();
+        if (fileArr == null) {
+            return files;
+        }
+
+        for (File file : fileArr) {
+            if (file.isDirectory()) {
+                files.addAll(getClassFiles(file));
+            } else if (file.getName().endsWith(".class")) {
+                files.add(file);
+            }
+        }
+
+        return files;
+    }
+}
@@ -0,0 +1,496 @@
+package com.tyron.compiler.abi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Strips a class file down to what a compiler needs to compile against it:
+ * the class header, non private fields with their constant values, and non
+ * private method signatures. Method bodies, private members and debug
+ * attributes are removed. Package private members are kept since sources in
+ * the same package may still use them.
+ *
+ * <p>The constant pool is copied as is, so the stripped class is only meant
+ * for compilation, never for dexing or running. It still holds the strings,
+ * references and constants of the removed method bodies, so the bytes of a
+ * stripped class change with its implementation. {@link #describe(byte[])}
+ * gives a canonical form of the same ABI to fingerprint instead.
+ */
+public final class AbiExtractor {
+
+    private static final int MAGIC = 0xcafebabe;
+
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private AbiExtractor() {
+
+    }
+
+    /**
+     * @param classFile the bytes of a class file
+     * @return the stripped class, or null if the class can't be referenced from
+     * sources (anonymous and local classes) and can be left out entirely
+     */
+    public static byte[] strip(byte[] classFile) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(classFile);
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        in.getInt(); // minor and major version
+
+        String[] utf8 = ConstantPool.read(in).mUtf8;
+
+        in.getShort(); // access flags
+        int thisClass = in.getShort() & 0xffff;
+        in.getShort(); // super class
+        int interfaceCount = in.getShort() & 0xffff;
+        in.position(in.position() + interfaceCount * 2);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(classFile.length / 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        // everything up to the fields is kept as is
+        out.write(classFile, 0, in.position());
+
+        copyMembers(in, out, utf8);
+        copyMembers(in, out, utf8);
+
+        int attributeCount = in.getShort() & 0xffff;
+        ByteArrayOutputStream attributes = new ByteArrayOutputStream();
+        DataOutputStream attributesOut = new DataOutputStream(attributes);
+        int keptAttributes = 0;
+        for (int i = 0; i < attributeCount; i++) {
+            int start = in.position();
+            String name = utf8[in.getShort() & 0xffff];
+            int length = in.getInt();
+            int end = in.position() + length;
+
+            if ("InnerClasses".equals(name) && isAnonymousOrLocal(in, thisClass)) {
+                return null;
+            }
+            in.position(end);
+
+            if ("SourceFile".equals(name) || "SourceDebugExtension".equals(name)) {
+                continue;
+            }
+            attributesOut.write(classFile, start, end - start);
+            keptAttributes++;
+        }
+        out.writeShort(keptAttributes);
+        out.write(attributes.toByteArray());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Copies the non private fields or methods at the current position,
+     * without their Code attribute.
+     */
+    private static void copyMembers(ByteBuffer in, DataOutputStream out, String[] utf8)
+            throws IOException {
+        byte[] classFile = in.array();
+        int count = in.getShort() & 0xffff;
+
+        ByteArrayOutputStream members = new ByteArrayOutputStream();
+        DataOutputStream membersOut = new DataOutputStream(members);
+        int keptMembers = 0;
+        for (int i = 0; i < count; i++) {
+            int start = in.position();
+            int access = in.getShort() & 0xffff;
+            in.getInt(); // name and descriptor
+            int attributeCount = in.getShort() & 0xffff;
+            boolean keep = (access & ACC_PRIVATE) == 0;
+
+            ByteArrayOutputStream attributes = new ByteArrayOutputStream();
+            int keptAttributes = 0;
+            for (int j = 0; j < attributeCount; j++) {
+                int attributeStart = in.position();
+                String name = utf8[in.getShort() & 0xffff];
+                int length = in.getInt();
+                in.position(in.position() + length);
+
+                if (keep && !"Code".equals(name)) {
+                    attributes.write(classFile, attributeStart, in.position() - attributeStart);
+                    keptAttributes++;
+                }
+            }
+
+            if (keep) {
+                membersOut.write(classFile, start, 6);
+                membersOut.writeShort(keptAttributes);
+                membersOut.write(attributes.toByteArray());
+                keptMembers++;
+            }
+        }
+        out.writeShort(keptMembers);
+        out.write(members.toByteArray());
+    }
+
+    /**
+     * Describes the ABI of a class in a canonical text form: its header, the
+     * non private, non synthetic members sorted by name and descriptor with
+     * their constant values, generic signatures, exceptions and annotations,
+     * and its member classes. Unlike the stripped class it doesn't depend on
+     * the constant pool, so it only changes when something sources can
+     * compile against changes.
+     *
+     * @param classFile the bytes of a class file
+     * @return the description, or null for anonymous and local classes like {@link #strip(byte[])}
+     */
+    public static String describe(byte[] classFile) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(classFile);
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        in.getInt(); // minor and major version
+        ConstantPool pool = ConstantPool.read(in);
+
+        int access = in.getShort() & 0xffff;
+        int thisClass = in.getShort() & 0xffff;
+        String name = pool.getClassName(thisClass);
+        StringBuilder sb = new StringBuilder();
+        sb.append("class ").append(name).append(' ').append(Integer.toHexString(access))
+                .append(" extends ").append(pool.getClassName(in.getShort() & 0xffff));
+        int interfaceCount = in.getShort() & 0xffff;
+        List<String> interfaces = new ArrayList<>();
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaces.add(pool.getClassName(in.getShort() & 0xffff));
+        }
+        Collections.sort(interfaces);
+        sb.append(" implements ").append(interfaces).append('\n');
+
+        for (String member : describeMembers(in, pool, "field")) {
+            sb.append(member).append('\n');
+        }
+        for (String member : describeMembers(in, pool, "method")) {
+            sb.append(member).append('\n');
+        }
+
+        int attributeCount = in.getShort() & 0xffff;
+        for (int i = 0; i < attributeCount; i++) {
+            String attributeName = pool.getUtf8(in.getShort() & 0xffff);
+            int length = in.getInt();
+            int end = in.position() + length;
+            if ("InnerClasses".equals(attributeName)) {
+                if (isAnonymousOrLocal(in.duplicate(), thisClass)) {
+                    return null;
+                }
+                describeInnerClasses(in, pool, thisClass, sb);
+            } else {
+                String attribute = describeAttribute(attributeName, in, pool);
+                if (attribute != null) {
+                    sb.append(attributeName).append(' ').append(attribute).append('\n');
+                }
+            }
+            in.position(end);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Describes the non private, non synthetic fields or methods at the
+     * current position. Synthetic members like the access$ methods of
+     * nested classes are implementation details that sources can't use.
+     */
+    private static List<String> describeMembers(ByteBuffer in, ConstantPool pool, String kind) {
+        int count = in.getShort() & 0xffff;
+        List<String> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int access = in.getShort() & 0xffff;
+            String name = pool.getUtf8(in.getShort() & 0xffff);
+            String descriptor = pool.getUtf8(in.getShort() & 0xffff);
+            boolean keep = (access & (ACC_PRIVATE | ACC_SYNTHETIC)) == 0;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(kind).append(' ').append(name).append(' ').append(descriptor)
+                    .append(' ').append(Integer.toHexString(access));
+            int attributeCount = in.getShort() & 0xffff;
+            for (int j = 0; j < attributeCount; j++) {
+                String attributeName = pool.getUtf8(in.getShort() & 0xffff);
+                int length = in.getInt();
+                int end = in.position() + length;
+                String attribute = keep ? describeAttribute(attributeName, in, pool) : null;
+                if (attribute != null) {
+                    sb.append(' ').append(attributeName).append('=').append(attribute);
+                }
+                in.position(end);
+            }
+            if (keep) {
+                members.add(sb.toString());
+            }
+        }
+        Collections.sort(members);
+        return members;
+    }
+
+    /**
+     * Describes the entries of an InnerClasses attribute about the class's own
+     * member classes and its own nesting. Entries of other nested classes are
+     * only there because the code references them.
+     */
+    private static void describeInnerClasses(ByteBuffer in, ConstantPool pool, int thisClass, StringBuilder sb) {
+        int count = in.getShort() & 0xffff;
+        List<String> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int innerClass = in.getShort() & 0xffff;
+            int outerClass = in.getShort() & 0xffff;
+            int innerName = in.getShort() & 0xffff;
+            int access = in.getShort() & 0xffff;
+            if ((innerClass == thisClass || outerClass == thisClass) && outerClass != 0 && innerName != 0
+                    && (access & (ACC_PRIVATE | ACC_SYNTHETIC)) == 0) {
+                entries.add(pool.getClassName(innerClass) + " " + pool.getClassName(outerClass)
+                        + " " + pool.getUtf8(innerName) + " " + Integer.toHexString(access));
+            }
+        }
+        Collections.sort(entries);
+        for (String entry : entries) {
+            sb.append("inner ").append(entry).append('\n');
+        }
+    }
+
+    /**
+     * Describes an attribute that is part of the ABI, with the constants it
+     * refers to resolved.
+     *
+     * @return the description, or null for attributes that don't affect compilation
+     */
+    private static String describeAttribute(String name, ByteBuffer in, ConstantPool pool) {
+        StringBuilder sb = new StringBuilder();
+        switch (name) {
+            case "ConstantValue":
+                return pool.describe(in.getShort() & 0xffff);
+            case "Signature":
+                return pool.getUtf8(in.getShort() & 0xffff);
+            case "Exceptions":
+            case "PermittedSubclasses": {
+                int count = in.getShort() & 0xffff;
+                List<String> classes = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    classes.add(pool.getClassName(in.getShort() & 0xffff));
+                }
+                Collections.sort(classes);
+                return classes.toString();
+            }
+            case "Deprecated":
+                return "";
+            case "AnnotationDefault":
+                describeElementValue(in, pool, sb);
+                return sb.toString();
+            case "RuntimeVisibleAnnotations":
+            case "RuntimeInvisibleAnnotations":
+                describeAnnotations(in, pool, sb);
+                return sb.toString();
+            case "RuntimeVisibleParameterAnnotations":
+            case "RuntimeInvisibleParameterAnnotations": {
+                int count = in.get() & 0xff;
+                for (int i = 0; i < count; i++) {
+                    sb.append('(');
+                    describeAnnotations(in, pool, sb);
+                    sb.append(')');
+                }
+                return sb.toString();
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static void describeAnnotations(ByteBuffer in, ConstantPool pool, StringBuilder sb) {
+        int count = in.getShort() & 0xffff;
+        for (int i = 0; i < count; i++) {
+            describeAnnotation(in, pool, sb);
+        }
+    }
+
+    private static void describeAnnotation(ByteBuffer in, ConstantPool pool, StringBuilder sb) {
+        sb.append('@').append(pool.getUtf8(in.getShort() & 0xffff)).append('(');
+        int count = in.getShort() & 0xffff;
+        for (int i = 0; i < count; i++) {
+            sb.append(pool.getUtf8(in.getShort() & 0xffff)).append('=');
+            describeElementValue(in, pool, sb);
+            sb.append(',');
+        }
+        sb.append(')');
+    }
+
+    private static void describeElementValue(ByteBuffer in, ConstantPool pool, StringBuilder sb) {
+        char tag = (char) (in.get() & 0xff);
+        switch (tag) {
+            case 'e':
+                sb.append(pool.getUtf8(in.getShort() & 0xffff)).append('.')
+                        .append(pool.getUtf8(in.getShort() & 0xffff));
+                break;
+            case 'c':
+                sb.append(pool.getUtf8(in.getShort() & 0xffff)).append(".class");
+                break;
+            case '@':
+                describeAnnotation(in, pool, sb);
+                break;
+            case '[': {
+                int count = in.getShort() & 0xffff;
+                sb.append('{');
+                for (int i = 0; i < count; i++) {
+                    describeElementValue(in, pool, sb);
+                    sb.append(',');
+                }
+                sb.append('}');
+                break;
+            }
+            default:
+                // primitives and strings
+                sb.append(tag).append(pool.describe(in.getShort() & 0xffff));
+                break;
+        }
+    }
+
+    /**
+     * Reads an InnerClasses attribute and checks whether it describes the class
+     * itself as an anonymous or local class. The buffer position is left
+     * undefined.
+     */
+    private static boolean isAnonymousOrLocal(ByteBuffer in, int thisClass) {
+        int count = in.getShort() & 0xffff;
+        for (int i = 0; i < count; i++) {
+            int innerClass = in.getShort() & 0xffff;
+            int outerClass = in.getShort() & 0xffff;
+            int innerName = in.getShort() & 0xffff;
+            in.getShort(); // inner access flags
+            if (innerClass == thisClass) {
+                return outerClass == 0 || innerName == 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The constant pool of a class file, with what the stripping and the
+     * description need of it.
+     */
+    private static final class ConstantPool {
+
+        final String[] mUtf8;
+        // the referenced utf8 index of class and string constants, the value of numeric ones
+        final Object[] mValues;
+        final int[] mTags;
+
+        private ConstantPool(int count) {
+            mUtf8 = new String[count];
+            mValues = new Object[count];
+            mTags = new int[count];
+        }
+
+        /**
+         * Reads the constant pool at the current position, the buffer is left at the access flags.
+         */
+        static ConstantPool read(ByteBuffer in) throws IOException {
+            int count = in.getShort() & 0xffff;
+            ConstantPool pool = new ConstantPool(count);
+            for (int i = 1; i < count; i++) {
+                int tag = in.get() & 0xff;
+                pool.mTags[i] = tag;
+                switch (tag) {
+                    case CONSTANT_UTF8:
+                        byte[] bytes = new byte[in.getShort() & 0xffff];
+                        in.get(bytes);
+                        pool.mUtf8[i] = new String(bytes, StandardCharsets.UTF_8);
+                        break;
+                    case CONSTANT_LONG:
+                        pool.mValues[i] = in.getLong();
+                        i++;
+                        break;
+                    case CONSTANT_DOUBLE:
+                        // raw bits, so every NaN and both zeros are told apart
+                        pool.mValues[i] = Double.doubleToRawLongBits(in.getDouble());
+                        i++;
+                        break;
+                    case CONSTANT_INTEGER:
+                        pool.mValues[i] = in.getInt();
+                        break;
+                    case CONSTANT_FLOAT:
+                        pool.mValues[i] = Float.floatToRawIntBits(in.getFloat());
+                        break;
+                    case CONSTANT_FIELDREF:
+                    case CONSTANT_METHODREF:
+                    case CONSTANT_INTERFACE_METHODREF:
+                    case CONSTANT_NAME_AND_TYPE:
+                    case CONSTANT_DYNAMIC:
+                    case CONSTANT_INVOKE_DYNAMIC:
+                        in.position(in.position() + 4);
+                        break;
+                    case CONSTANT_METHOD_HANDLE:
+                        in.position(in.position() + 3);
+                        break;
+                    case CONSTANT_CLASS:
+                    case CONSTANT_STRING:
+                        pool.mValues[i] = in.getShort() & 0xffff;
+                        break;
+                    case CONSTANT_METHOD_TYPE:
+                    case CONSTANT_MODULE:
+                    case CONSTANT_PACKAGE:
+                        in.position(in.position() + 2);
+                        break;
+                    default:
+                        throw new IOException("Unknown constant pool tag " + tag);
+                }
+            }
+            return pool;
+        }
+
+        String getUtf8(int index) {
+            return mUtf8[index];
+        }
+
+        /**
+         * @return the name of a class constant, null for index 0 like the super class of Object
+         */
+        String getClassName(int index) {
+            return index == 0 ? null : mUtf8[(Integer) mValues[index]];
+        }
+
+        /**
+         * @return a constant value as text that tells its type and value apart
+         */
+        String describe(int index) {
+            switch (mTags[index]) {
+                case CONSTANT_UTF8:
+                    return '"' + mUtf8[index] + '"';
+                case CONSTANT_STRING:
+                    return '"' + mUtf8[(Integer) mValues[index]] + '"';
+                case CONSTANT_INTEGER:
+                    return "I" + mValues[index];
+                case CONSTANT_FLOAT:
+                    return "F" + Integer.toHexString((Integer) mValues[index]);
+                case CONSTANT_LONG:
+                    return "J" + mValues[index];
+                case CONSTANT_DOUBLE:
+                    return "D" + Long.toHexString((Long) mValues[index]);
+                default:
+                    return "#" + mTags[index];
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.tyron.compiler.abi;
+
+import com.tyron.compiler.cache.BuildCache;
+import com.tyron.compiler.cache.Fingerprint;
+import com.tyron.compiler.zip.MappedZipFile;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Derives and caches the ABI jars of libraries. An ABI jar only contains the
+ * stripped classes produced by {@link AbiExtractor} and is used as the compile
+ * classpath in place of the library's full {@code classes.jar}, which is still
+ * what gets dexed and packaged.
+ *
+ * <p>ABI jars are keyed by the content hash of the original jar, so they are
+ * only generated once per version of a library. The same goes for the ABI
+ * hash of {@link #getAbiHash(File)}, which is what tells whether a new
+ * version of a library changed its ABI.
+ */
+public final class AbiJars {
+
+    private static final String CACHE_NAME = "abi";
+
+    // fixed so identical ABIs produce byte identical jars
+    private static final long ENTRY_TIME = 315532800000L;
+
+    private AbiJars() {
+
+    }
+
+    /**
+     * Gets the ABI jar of the given jar, generating it if it doesn't exist yet.
+     */
+    public static File get(File jar) throws IOException {
+        File abiJar = new File(BuildCache.getDirectory(CACHE_NAME), Fingerprint.of(jar) + ".jar");
+        if (abiJar.exists()) {
+            return abiJar;
+        }
+
+        Map<String, byte[]> classes = new TreeMap<>();
+        MappedZipFile zipFile = new MappedZipFile(jar);
+        for (MappedZipFile.Entry entry : zipFile.getEntries()) {
+            String name = entry.getName();
+            if (!name.endsWith(".class") || name.endsWith("module-info.class")) {
+                continue;
+            }
+            byte[] stripped = AbiExtractor.strip(zipFile.getBytes(entry));
+            if (stripped != null) {
+                classes.put(name, stripped);
+            }
+        }
+
+        File tempFile = new File(abiJar.getPath() + ".tmp");
+        try (ZipOutputStream out = new ZipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                zipEntry.setTime(ENTRY_TIME);
+                out.putNextEntry(zipEntry);
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+        if (!tempFile.renameTo(abiJar)) {
+            tempFile.delete();
+            throw new IOException("Unable to write " + abiJar);
+        }
+        return abiJar;
+    }
+
+    /**
+     * Gets the hash of the canonical ABI of the given jar, the {@link
+     * AbiExtractor#describe(byte[]) descriptions} of its classes. Unlike the
+     * bytes of the ABI jar it stays the same when only method bodies change.
+     */
+    public static String getAbiHash(File jar) throws IOException {
+        File hashFile = new File(BuildCache.getDirectory(CACHE_NAME), Fingerprint.of(jar) + ".abi");
+        if (hashFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(hashFile))) {
+                String hash = reader.readLine();
+                if (hash != null && !hash.isEmpty()) {
+                    return hash;
+                }
+            }
+        }
+
+        Map<String, String> classes = new TreeMap<>();
+        MappedZipFile zipFile = new MappedZipFile(jar);
+        for (MappedZipFile.Entry entry : zipFile.getEntries()) {
+            String name = entry.getName();
+            if (!name.endsWith(".class") || name.endsWith("module-info.class")) {
+                continue;
+            }
+            String description = AbiExtractor.describe(zipFile.getBytes(entry));
+            if (description != null) {
+                classes.put(name, description);
+            }
+        }
+
+        MessageDigest digest = Fingerprint.newDigest();
+        for (String description : classes.values()) {
+            digest.update(description.getBytes(StandardCharsets.UTF_8));
+        }
+        String hash = Fingerprint.toHex(digest.digest());
+
+        File tempFile = new File(hashFile.getPath() + ".tmp");
+        try (Writer writer = new FileWriter(tempFile)) {
+            writer.write(hash);
+        }
+        if (!tempFile.renameTo(hashFile)) {
+            tempFile.delete();
+        }
+        return hash;
+    }
+}
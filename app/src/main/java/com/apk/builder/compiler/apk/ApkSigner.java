@@ -0,0 +1,346 @@
+package com.tyron.compiler.apk;
+
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Creates the signatures of an APK for {@link ApkWriter}: the v1 (JAR)
+ * signature files under META-INF for devices before Android 7, and an APK
+ * Signing Block with v2 and v3 signatures over the content digest of the
+ * whole file. Only RSA and EC keys are supported, both signing with SHA-256.
+ */
+public class ApkSigner {
+
+    private static final int V2_BLOCK_ID = 0x7109871a;
+    private static final int V3_BLOCK_ID = 0xf05368c0;
+    // tells v2 verifiers the APK also has a v3 signature, so it can't be stripped
+    private static final int STRIPPING_PROTECTION_ATTRIBUTE_ID = 0xbeeff00d;
+    private static final byte[] SIGNING_BLOCK_MAGIC = "APK Sig Block 42".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+    private static final int ECDSA_WITH_SHA256 = 0x0201;
+
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    // first api levels verifying v2 and v3 signatures
+    private static final int V2_MIN_SDK = 24;
+    private static final int V3_MIN_SDK = 28;
+
+    private static final String CREATED_BY = "1.0 (Android)";
+
+    private final PrivateKey mPrivateKey;
+    private final X509Certificate mCertificate;
+    private final int mMinSdk;
+
+    public ApkSigner(PrivateKey privateKey, X509Certificate certificate, int minSdk) {
+        mPrivateKey = privateKey;
+        mCertificate = certificate;
+        mMinSdk = minSdk;
+    }
+
+    /**
+     * Reads a key in the format of the AOSP test keys, an unencrypted
+     * PKCS#8 private key and a PEM or DER certificate.
+     */
+    public static ApkSigner fromPk8(InputStream pk8, InputStream certificate, int minSdk)
+            throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = pk8.read(buffer)) != -1) {
+            bytes.write(buffer, 0, length);
+        }
+        X509Certificate x509 = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(certificate);
+        PrivateKey key = KeyFactory.getInstance(x509.getPublicKey().getAlgorithm())
+                .generatePrivate(new PKCS8EncodedKeySpec(bytes.toByteArray()));
+        return new ApkSigner(key, x509, minSdk);
+    }
+
+    /**
+     * @return whether the APK needs v1 signature files, v2 is only verified from Android 7
+     */
+    public boolean isV1Enabled() {
+        return mMinSdk < V2_MIN_SDK;
+    }
+
+    /**
+     * @return the digest of an entry's uncompressed data for its v1 manifest section
+     */
+    public byte[] digestEntry(byte[] data) {
+        return newDigest(getV1DigestAlgorithm()).digest(data);
+    }
+
+    /**
+     * @return whether the entry is one of the v1 signature files, which are not signed themselves
+     */
+    public static boolean isSignatureFile(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1) {
+            return false;
+        }
+        String upperCase = name.toUpperCase(Locale.ROOT);
+        return upperCase.equals("META-INF/MANIFEST.MF")
+                || upperCase.endsWith(".SF")
+                || upperCase.endsWith(".RSA")
+                || upperCase.endsWith(".DSA")
+                || upperCase.endsWith(".EC");
+    }
+
+    /**
+     * Creates MANIFEST.MF, CERT.SF and the PKCS#7 signature of CERT.SF.
+     *
+     * @param names   the entries in the order they are listed
+     * @param digests the {@link #digestEntry(byte[])} of every entry
+     * @return the contents of the signature files by entry name
+     */
+    public Map<String, byte[]> createV1Entries(List<String> names, List<byte[]> digests)
+            throws GeneralSecurityException {
+        String digestName = getV1DigestAlgorithm().equals("SHA-1") ? "SHA1" : "SHA-256";
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        writeAttribute(manifest, "Manifest-Version", "1.0");
+        writeAttribute(manifest, "Created-By", CREATED_BY);
+        manifest.write('\r');
+        manifest.write('\n');
+
+        ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+        ByteArrayOutputStream sections = new ByteArrayOutputStream();
+        for (int i = 0; i < names.size(); i++) {
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            writeAttribute(section, "Name", names.get(i));
+            writeAttribute(section, digestName + "-Digest", Base64.encodeToString(digests.get(i), Base64.NO_WRAP));
+            section.write('\r');
+            section.write('\n');
+            byte[] sectionBytes = section.toByteArray();
+            manifest.write(sectionBytes, 0, sectionBytes.length);
+
+            writeAttribute(sections, "Name", names.get(i));
+            writeAttribute(sections, digestName + "-Digest", Base64.encodeToString(digestEntry(sectionBytes), Base64.NO_WRAP));
+            sections.write('\r');
+            sections.write('\n');
+        }
+        byte[] manifestBytes = manifest.toByteArray();
+
+        writeAttribute(signatureFile, "Signature-Version", "1.0");
+        writeAttribute(signatureFile, "Created-By", CREATED_BY);
+        writeAttribute(signatureFile, digestName + "-Digest-Manifest", Base64.encodeToString(digestEntry(manifestBytes), Base64.NO_WRAP));
+        // v2 and v3 verifiers reject the APK if the signing block was stripped
+        writeAttribute(signatureFile, "X-Android-APK-Signed", "2, 3");
+        signatureFile.write('\r');
+        signatureFile.write('\n');
+        byte[] sectionBytes = sections.toByteArray();
+        signatureFile.write(sectionBytes, 0, sectionBytes.length);
+        byte[] signatureFileBytes = signatureFile.toByteArray();
+
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("META-INF/MANIFEST.MF", manifestBytes);
+        entries.put("META-INF/CERT.SF", signatureFileBytes);
+        entries.put("META-INF/CERT." + (isRsa() ? "RSA" : "EC"), createPkcs7(signatureFileBytes));
+        return entries;
+    }
+
+    /**
+     * Writes a manifest attribute, lines longer than 72 bytes continue on
+     * the next line after a space.
+     */
+    private static void writeAttribute(ByteArrayOutputStream out, String name, String value) {
+        byte[] line = (name + ": " + value).getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        int length = Math.min(line.length, 72);
+        while (true) {
+            out.write(line, offset, length);
+            out.write('\r');
+            out.write('\n');
+            offset += length;
+            if (offset >= line.length) {
+                return;
+            }
+            out.write(' ');
+            length = Math.min(line.length - offset, 71);
+        }
+    }
+
+    /**
+     * Creates a detached PKCS#7 SignedData of the signature file, as jarsigner does.
+     */
+    private byte[] createPkcs7(byte[] signatureFile) throws GeneralSecurityException {
+        String v1Digest = getV1DigestAlgorithm();
+        byte[] digestAlgorithm = der(0x30, der(0x06, v1Digest.equals("SHA-1")
+                ? new byte[]{0x2b, 0x0e, 0x03, 0x02, 0x1a}
+                : new byte[]{0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01}), der(0x05));
+        byte[] encryptionAlgorithm = isRsa()
+                ? der(0x30, der(0x06, new byte[]{0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01}), der(0x05))
+                : der(0x30, der(0x06, new byte[]{0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01}));
+
+        Signature signature = Signature.getInstance(
+                (v1Digest.equals("SHA-1") ? "SHA1" : "SHA256") + (isRsa() ? "withRSA" : "withECDSA"));
+        signature.initSign(mPrivateKey);
+        signature.update(signatureFile);
+
+        byte[] signerInfo = der(0x30,
+                der(0x02, new byte[]{1}),
+                der(0x30, mCertificate.getIssuerX500Principal().getEncoded(),
+                        der(0x02, mCertificate.getSerialNumber().toByteArray())),
+                digestAlgorithm,
+                encryptionAlgorithm,
+                der(0x04, signature.sign()));
+        byte[] signedData = der(0x30,
+                der(0x02, new byte[]{1}),
+                der(0x31, digestAlgorithm),
+                der(0x30, der(0x06, new byte[]{0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x07, 0x01})),
+                der(0xa0, mCertificate.getEncoded()),
+                der(0x31, signerInfo));
+        return der(0x30,
+                der(0x06, new byte[]{0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x07, 0x02}),
+                der(0xa0, signedData));
+    }
+
+    /**
+     * Encodes a DER value from its tag and the encoded parts of its contents.
+     */
+    private static byte[] der(int tag, byte[]... contents) {
+        int length = 0;
+        for (byte[] content : contents) {
+            length += content.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            byte[] lengthBytes = BigInteger.valueOf(length).toByteArray();
+            int start = lengthBytes[0] == 0 ? 1 : 0;
+            out.write(0x80 | (lengthBytes.length - start));
+            out.write(lengthBytes, start, lengthBytes.length - start);
+        }
+        for (byte[] content : contents) {
+            out.write(content, 0, content.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Digests one chunk of the APK's contents for the v2 and v3 content digest.
+     */
+    public static byte[] digestChunk(ByteBuffer chunk) {
+        MessageDigest digest = newDigest("SHA-256");
+        digest.update((byte) 0xa5);
+        digest.update(uint32(chunk.remaining()));
+        digest.update(chunk);
+        return digest.digest();
+    }
+
+    /**
+     * @param chunkDigests the digests of the chunks of the entries, the
+     *                     central directory and the end of central directory, in order
+     */
+    public static byte[] digestChunks(List<byte[]> chunkDigests) {
+        MessageDigest digest = newDigest("SHA-256");
+        digest.update((byte) 0x5a);
+        digest.update(uint32(chunkDigests.size()));
+        for (byte[] chunkDigest : chunkDigests) {
+            digest.update(chunkDigest);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Creates the APK Signing Block with the v2 and v3 signatures of the content digest.
+     */
+    public byte[] createSigningBlock(byte[] contentDigest) throws GeneralSecurityException {
+        int algorithm = isRsa() ? RSA_PKCS1_V1_5_WITH_SHA256 : ECDSA_WITH_SHA256;
+        byte[] digests = lengthPrefixed(lengthPrefixed(uint32(algorithm), lengthPrefixed(contentDigest)));
+        byte[] certificates = lengthPrefixed(lengthPrefixed(mCertificate.getEncoded()));
+        byte[] publicKey = lengthPrefixed(mCertificate.getPublicKey().getEncoded());
+
+        byte[] v2SignedData = concat(digests, certificates,
+                lengthPrefixed(lengthPrefixed(uint32(STRIPPING_PROTECTION_ATTRIBUTE_ID), uint32(3))));
+        byte[] v2Signer = concat(lengthPrefixed(v2SignedData), sign(algorithm, v2SignedData), publicKey);
+
+        byte[] sdkRange = concat(uint32(V3_MIN_SDK), uint32(Integer.MAX_VALUE));
+        byte[] v3SignedData = concat(digests, certificates, sdkRange, lengthPrefixed());
+        byte[] v3Signer = concat(lengthPrefixed(v3SignedData), sdkRange, sign(algorithm, v3SignedData), publicKey);
+
+        byte[] pairs = concat(
+                pair(V2_BLOCK_ID, lengthPrefixed(lengthPrefixed(v2Signer))),
+                pair(V3_BLOCK_ID, lengthPrefixed(lengthPrefixed(v3Signer))));
+        // the size fields count everything but the first of them
+        long size = pairs.length + 8 + SIGNING_BLOCK_MAGIC.length;
+        return concat(uint64(size), pairs, uint64(size), SIGNING_BLOCK_MAGIC);
+    }
+
+    private byte[] sign(int algorithm, byte[] signedData) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(isRsa() ? "SHA256withRSA" : "SHA256withECDSA");
+        signature.initSign(mPrivateKey);
+        signature.update(signedData);
+        return lengthPrefixed(lengthPrefixed(uint32(algorithm), lengthPrefixed(signature.sign())));
+    }
+
+    private boolean isRsa() {
+        return mPrivateKey.getAlgorithm().equals("RSA");
+    }
+
+    /**
+     * @return the digest of v1 signatures, SHA-256 is only supported from Android 4.3
+     */
+    public String getV1DigestAlgorithm() {
+        return mMinSdk < 18 ? "SHA-1" : "SHA-256";
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] pair(int id, byte[] value) {
+        return concat(uint64(4 + value.length), uint32(id), value);
+    }
+
+    private static byte[] lengthPrefixed(byte[]... parts) {
+        byte[] value = concat(parts);
+        return concat(uint32(value.length), value);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    private static byte[] uint32(int value) {
+        return new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)};
+    }
+
+    private static byte[] uint64(long value) {
+        return concat(uint32((int) value), uint32((int) (value >>> 32)));
+    }
+}
@@ -0,0 +1,821 @@
+package com.tyron.compiler.apk;
+
+import com.tyron.compiler.cache.Fingerprint;
+import com.tyron.compiler.zip.MappedZipFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an APK in one pass. Entries of other zips, like the resource apk of
+ * aapt2 or library jars, are copied byte for byte from their mapped data
+ * without being inflated and deflated again. New entries are compressed on
+ * a pool of one thread per core as soon as they are added, and written in
+ * the order they were added once they are ready. The central directory is
+ * written at the end from what was collected while writing the entries.
+ *
+ * <p>Next to the APK an index keeps the name, CRC, sizes, offset and source
+ * fingerprint of every entry. When the APK is written again, entries whose
+ * source didn't change are neither read nor compressed: the existing file
+ * is updated in place by appending the changed entries over the old central
+ * directory and writing a new one after them. Entries that were replaced or
+ * removed stay in the file as dead space, once that grows past a quarter of
+ * the file it is compacted by writing it from scratch.
+ *
+ * <p>With an {@link ApkSigner} the APK is signed as it is closed. The v1
+ * signature files are added as the last entries, from digests of the
+ * uncompressed data computed in the background with the compression and
+ * kept in the index for reused entries. The v2 and v3 signatures need the
+ * digest of every 1 MB chunk of the file, those are computed in parallel
+ * and the index keeps them too: an APK updated in place only digests the
+ * chunks from the first changed byte on.
+ *
+ * <p>The APK is aligned as it is written, so it doesn't need zipalign:
+ * stored entries start at a multiple of 4 bytes and stored native libraries
+ * at a page boundary, padded with an alignment extra field in the local
+ * header. resources.arsc is always stored, so Android maps all of them from
+ * the APK instead of inflating them into memory.
+ *
+ * <p>Entries get a fixed timestamp, so the same inputs produce the same APK.
+ */
+public class ApkWriter implements Closeable {
+
+    /**
+     * Decides which entries of a zip are copied.
+     */
+    public interface EntryFilter {
+        boolean accept(String name);
+    }
+
+    /**
+     * Accepts the Java resources of a library jar, skipping classes, sources
+     * and the jar's own manifest and signature.
+     */
+    public static final EntryFilter JAVA_RESOURCES = name -> {
+        if (name.endsWith("/")) {
+            return false;
+        }
+        String upperCase = name.toUpperCase(Locale.ROOT);
+        if (upperCase.startsWith("META-INF/")
+                && (upperCase.equals("META-INF/MANIFEST.MF")
+                || upperCase.endsWith(".SF")
+                || upperCase.endsWith(".RSA")
+                || upperCase.endsWith(".DSA")
+                || upperCase.endsWith(".EC"))) {
+            return false;
+        }
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        if (fileName.equals("package.html") || fileName.equals("overview.html")
+                || fileName.equalsIgnoreCase("thumbs.db") || fileName.equals(".DS_Store")) {
+            return false;
+        }
+        int dot = fileName.lastIndexOf('.');
+        String extension = dot == -1 ? "" : fileName.substring(dot + 1);
+        switch (extension) {
+            case "class":
+            case "java":
+            case "kt":
+            case "aidl":
+            case "rs":
+            case "rsh":
+            case "d":
+            case "scc":
+            case "swp":
+                return false;
+        }
+        return true;
+    };
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int EOCD_SIZE = 22;
+
+    private static final int INDEX_VERSION = 3;
+    private static final double MAX_WASTE_RATIO = 0.25;
+
+    private static final int VERSION_NEEDED = 20;
+    // names are always written as UTF-8
+    private static final int FLAG_UTF8 = 1 << 11;
+    // 1980-01-01 00:00
+    private static final int DOS_DATE = (1 << 5) | 1;
+    private static final int DOS_TIME = 0;
+
+    // extra field of the local header padding the data to its alignment, as apksigner writes it
+    private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+    private static final int ALIGNMENT_EXTRA_MIN_SIZE = 6;
+    private static final int ALIGNMENT = 4;
+    private static final int NATIVE_LIBRARY_ALIGNMENT = 4096;
+    private static final String RESOURCE_TABLE_NAME = "resources.arsc";
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "ApkWriter");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * An entry's data as it is stored in the archive, with what the headers need.
+     */
+    private static class EntryData {
+
+        final int mMethod;
+        final long mCrc;
+        final long mSize;
+        final int mCompressedSize;
+        // null once the entry is written, only the central directory needs it after that
+        final ByteBuffer mData;
+        // digest of the uncompressed data for the v1 signature, null if it isn't signed
+        final byte[] mDigest;
+
+        EntryData(int method, long crc, long size, ByteBuffer data, byte[] digest) {
+            this(method, crc, size, data.remaining(), data, digest);
+        }
+
+        EntryData(int method, long crc, long size, int compressedSize, ByteBuffer data, byte[] digest) {
+            mMethod = method;
+            mCrc = crc;
+            mSize = size;
+            mCompressedSize = compressedSize;
+            mData = data;
+            mDigest = digest;
+        }
+    }
+
+    private static class PendingEntry {
+
+        final String mName;
+        final String mFingerprint;
+        // null if the entry is reused from the previous APK
+        Future<EntryData> mData;
+        long mOffset;
+        long mRecordSize;
+        EntryData mWritten;
+
+        PendingEntry(String name, String fingerprint, Future<EntryData> data) {
+            mName = name;
+            mFingerprint = fingerprint;
+            mData = data;
+        }
+    }
+
+    private final File mFile;
+    private final File mIndexFile;
+    private final ApkSigner mSigner;
+    private final List<PendingEntry> mEntries = new ArrayList<>();
+    private final Set<String> mNames = new HashSet<>();
+    private final List<String> mDuplicates = new ArrayList<>();
+
+    // entries of the previous APK by name, null if there is none or it changed since it was written
+    private Map<String, PendingEntry> mPrevious;
+    private long mPreviousDataEnd;
+    private long mPreviousWaste;
+    // digests of the chunks of the previous APK's entries, empty if it wasn't signed
+    private List<byte[]> mPreviousChunkDigests = Collections.emptyList();
+    private List<byte[]> mChunkDigests = Collections.emptyList();
+
+    private FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private long mPosition;
+    private boolean mUpdatedInPlace;
+
+    public ApkWriter(File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param signer signs the APK when it is closed, null leaves it unsigned
+     */
+    public ApkWriter(File file, ApkSigner signer) {
+        mFile = file;
+        mIndexFile = new File(file.getPath() + ".index");
+        mSigner = signer;
+        readIndex();
+    }
+
+    /**
+     * Copies the entries of a zip without recompressing them.
+     *
+     * @param filter decides which entries are copied, null copies all but directories
+     */
+    public void addZipEntries(MappedZipFile zip, EntryFilter filter) throws IOException {
+        for (MappedZipFile.Entry entry : zip.getEntries()) {
+            if (entry.isDirectory() || (filter != null && !filter.accept(entry.getName()))) {
+                continue;
+            }
+            String fingerprint = getFingerprint(entry);
+            if (reserve(entry.getName(), fingerprint)) {
+                addZipEntry(zip, entry, fingerprint);
+            }
+        }
+    }
+
+    /**
+     * Copies entries of a zip whose central directory was read before, like
+     * a {@link JavaResourceIndex}. The zip is only opened if an entry isn't
+     * reused from the previous APK.
+     */
+    public void addZipEntries(File file, List<MappedZipFile.Entry> entries) throws IOException {
+        MappedZipFile zip = null;
+        for (MappedZipFile.Entry entry : entries) {
+            String fingerprint = getFingerprint(entry);
+            if (!reserve(entry.getName(), fingerprint)) {
+                continue;
+            }
+            if (zip == null) {
+                zip = new MappedZipFile(file, false);
+            }
+            addZipEntry(zip, entry, fingerprint);
+        }
+    }
+
+    /**
+     * The central directory of the source already describes the data exactly.
+     */
+    private static String getFingerprint(MappedZipFile.Entry entry) {
+        return "zip:" + entry.getMethod() + ":" + Long.toHexString(entry.getCrc())
+                + ":" + entry.getCompressedSize() + ":" + entry.getSize();
+    }
+
+    private void addZipEntry(MappedZipFile zip, MappedZipFile.Entry entry, String fingerprint) throws IOException {
+        if (entry.getName().equals(RESOURCE_TABLE_NAME) && entry.getMethod() != MappedZipFile.METHOD_STORED) {
+            mEntries.add(new PendingEntry(entry.getName(), fingerprint, sExecutor.submit(
+                    () -> createEntryData(entry.getName(), zip.getBytes(entry), false))));
+            return;
+        }
+        ByteBuffer rawData = zip.getRawData(entry);
+        if (needsDigest(entry.getName())) {
+            //only the v1 signature needs the entry inflated
+            mEntries.add(new PendingEntry(entry.getName(), fingerprint, sExecutor.submit(
+                    () -> new EntryData(entry.getMethod(), entry.getCrc(), entry.getSize(), rawData,
+                            mSigner.digestEntry(zip.getBytes(entry))))));
+            return;
+        }
+        EntryData data = new EntryData(entry.getMethod(), entry.getCrc(), entry.getSize(), rawData, null);
+        FutureTask<EntryData> task = new FutureTask<>(() -> data);
+        task.run();
+        mEntries.add(new PendingEntry(entry.getName(), fingerprint, task));
+    }
+
+    /**
+     * Adds a file, it is read and compressed in the background unless it is
+     * unchanged since the previous APK.
+     *
+     * @param compress false to store it uncompressed, also done if deflating doesn't make it smaller
+     *                 and for resources.arsc
+     */
+    public void addFile(String name, File file, boolean compress) throws IOException {
+        String fingerprint = "file:" + Fingerprint.of(file) + ":" + compress;
+        if (reserve(name, fingerprint)) {
+            mEntries.add(new PendingEntry(name, fingerprint, sExecutor.submit(
+                    () -> createEntryData(name, Files.readAllBytes(file.toPath()), compress))));
+        }
+    }
+
+    public void addBytes(String name, byte[] bytes, boolean compress) {
+        String fingerprint = "bytes:" + Fingerprint.of(bytes) + ":" + compress;
+        if (reserve(name, fingerprint)) {
+            mEntries.add(new PendingEntry(name, fingerprint, sExecutor.submit(() -> createEntryData(name, bytes, compress))));
+        }
+    }
+
+    /**
+     * @return whether the last {@link #close()} updated the previous APK instead of writing a new one
+     */
+    public boolean isUpdatedInPlace() {
+        return mUpdatedInPlace;
+    }
+
+    /**
+     * @return names that were added more than once, only their first entry is written
+     */
+    public List<String> getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * Claims a name for a new entry. An entry of the previous APK with the
+     * same fingerprint is reused right away, false is returned for it too.
+     */
+    private boolean reserve(String name, String fingerprint) {
+        if (!mNames.add(name)) {
+            mDuplicates.add(name);
+            return false;
+        }
+        PendingEntry previous = mPrevious == null ? null : mPrevious.get(name);
+        if (previous != null && previous.mFingerprint.equals(fingerprint)) {
+            mEntries.add(previous);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean needsDigest(String name) {
+        return mSigner != null && mSigner.isV1Enabled() && !ApkSigner.isSignatureFile(name);
+    }
+
+    private EntryData createEntryData(String name, byte[] bytes, boolean compress) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        byte[] digest = needsDigest(name) ? mSigner.digestEntry(bytes) : null;
+        if (compress && !name.equals(RESOURCE_TABLE_NAME)) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(bytes);
+                deflater.finish();
+                byte[] buffer = new byte[Math.max(64, bytes.length)];
+                int length = 0;
+                while (!deflater.finished() && length < buffer.length) {
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                }
+                if (deflater.finished() && length < bytes.length) {
+                    return new EntryData(MappedZipFile.METHOD_DEFLATED, crc.getValue(), bytes.length,
+                            ByteBuffer.wrap(buffer, 0, length), digest);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return new EntryData(MappedZipFile.METHOD_STORED, crc.getValue(), bytes.length, ByteBuffer.wrap(bytes), digest);
+    }
+
+    /**
+     * Writes the entries and the central directory, updating the previous APK
+     * in place if it is still what this writer wrote last time.
+     */
+    @Override
+    public void close() throws IOException {
+        File parent = mFile.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        if (mSigner != null && mSigner.isV1Enabled()) {
+            addSignatureFiles();
+        }
+
+        long waste = mPreviousWaste;
+        if (mPrevious != null) {
+            Set<PendingEntry> kept = new HashSet<>(mEntries);
+            for (PendingEntry entry : mPrevious.values()) {
+                if (!kept.contains(entry)) {
+                    waste += entry.mRecordSize;
+                }
+            }
+        }
+        mUpdatedInPlace = mPrevious != null && waste <= mPreviousDataEnd * MAX_WASTE_RATIO;
+        // the index is only valid again once the new APK is complete
+        mIndexFile.delete();
+
+        if (mUpdatedInPlace) {
+            long dataEnd;
+            try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                mChannel = raf.getChannel();
+                mChannel.position(mPreviousDataEnd);
+                mPosition = mPreviousDataEnd;
+                for (PendingEntry entry : mEntries) {
+                    if (entry.mData != null) {
+                        writeEntry(entry, null);
+                    }
+                }
+                dataEnd = mPosition;
+                writeCentralDirectory();
+                if (mSigner != null) {
+                    sign(dataEnd);
+                }
+                mChannel.truncate(mPosition);
+            } finally {
+                mChannel = null;
+            }
+            writeIndex(dataEnd, waste);
+            return;
+        }
+
+        // entries reused from the previous APK are copied from it into a new file
+        MappedZipFile previousApk = mPrevious == null ? null : new MappedZipFile(mFile, false);
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        long dataEnd;
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+            raf.setLength(0);
+            mChannel = raf.getChannel();
+            mPosition = 0;
+            // nothing of the previous APK is kept in place, so no chunk digest can be reused
+            mPreviousChunkDigests = Collections.emptyList();
+            for (PendingEntry entry : mEntries) {
+                writeEntry(entry, previousApk);
+            }
+            dataEnd = mPosition;
+            writeCentralDirectory();
+            if (mSigner != null) {
+                sign(dataEnd);
+            }
+        } finally {
+            mChannel = null;
+        }
+        if (!tempFile.renameTo(mFile)) {
+            mFile.delete();
+            if (!tempFile.renameTo(mFile)) {
+                tempFile.delete();
+                throw new IOException("Unable to write " + mFile);
+            }
+        }
+        writeIndex(dataEnd, 0);
+    }
+
+    private void writeEntry(PendingEntry entry, MappedZipFile previousApk) throws IOException {
+        ByteBuffer data;
+        if (entry.mData != null) {
+            EntryData written = await(entry);
+            entry.mData = null;
+            data = written.mData;
+            entry.mWritten = new EntryData(written.mMethod, written.mCrc, written.mSize, written.mCompressedSize,
+                    null, written.mDigest);
+        } else {
+            EntryData written = entry.mWritten;
+            data = previousApk.getRawData(new MappedZipFile.Entry(entry.mName, written.mMethod,
+                    written.mCrc, written.mCompressedSize, written.mSize, entry.mOffset));
+        }
+        entry.mOffset = mPosition;
+        writeLocalHeader(entry);
+        write(data.duplicate());
+        entry.mRecordSize = mPosition - entry.mOffset;
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralDirectoryOffset = mPosition;
+        for (PendingEntry entry : mEntries) {
+            writeCentralHeader(entry);
+        }
+        long centralDirectorySize = mPosition - centralDirectoryOffset;
+        if (mEntries.size() > 0xffff || mPosition > 0xffffffffL) {
+            throw new IOException(mFile.getName() + ": zip64 archives are not supported");
+        }
+
+        ensure(EOCD_SIZE);
+        mBuffer.putInt(EOCD_SIGNATURE);
+        mBuffer.putShort((short) 0);
+        mBuffer.putShort((short) 0);
+        mBuffer.putShort((short) mEntries.size());
+        mBuffer.putShort((short) mEntries.size());
+        mBuffer.putInt((int) centralDirectorySize);
+        mBuffer.putInt((int) centralDirectoryOffset);
+        mBuffer.putShort((short) 0);
+        mPosition += EOCD_SIZE;
+        flush();
+    }
+
+    /**
+     * Adds the v1 signature files for the entries added so far, signature
+     * files of the inputs are dropped as they don't match the new ones.
+     */
+    private void addSignatureFiles() throws IOException {
+        List<String> names = new ArrayList<>();
+        List<byte[]> digests = new ArrayList<>();
+        Iterator<PendingEntry> iterator = mEntries.iterator();
+        while (iterator.hasNext()) {
+            PendingEntry entry = iterator.next();
+            if (ApkSigner.isSignatureFile(entry.mName)) {
+                iterator.remove();
+                mNames.remove(entry.mName);
+                continue;
+            }
+            names.add(entry.mName);
+            digests.add(entry.mData != null ? await(entry).mDigest : entry.mWritten.mDigest);
+        }
+        try {
+            for (Map.Entry<String, byte[]> file : mSigner.createV1Entries(names, digests).entrySet()) {
+                addBytes(file.getKey(), file.getValue(), true);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to sign " + mFile.getName(), e);
+        }
+    }
+
+    /**
+     * Inserts the APK Signing Block between the entries and the central
+     * directory that was just written after them.
+     */
+    private void sign(long dataEnd) throws IOException {
+        ByteBuffer centralDirectory = ByteBuffer.allocate((int) (mPosition - dataEnd)).order(ByteOrder.LITTLE_ENDIAN);
+        while (centralDirectory.hasRemaining()) {
+            if (mChannel.read(centralDirectory, dataEnd + centralDirectory.position()) == -1) {
+                throw new IOException("Unexpected end of " + mFile.getName());
+            }
+        }
+        centralDirectory.flip();
+        int eocdOffset = centralDirectory.limit() - EOCD_SIZE;
+
+        // the end of central directory is digested as it is now, pointing at the start of the block
+        List<byte[]> chunkDigests = new ArrayList<>(digestEntryChunks(dataEnd));
+        mChunkDigests = new ArrayList<>(chunkDigests);
+        for (int start = 0; start < eocdOffset; start += ApkSigner.CHUNK_SIZE) {
+            ByteBuffer chunk = centralDirectory.duplicate();
+            chunk.position(start).limit(Math.min(start + ApkSigner.CHUNK_SIZE, eocdOffset));
+            chunkDigests.add(ApkSigner.digestChunk(chunk));
+        }
+        ByteBuffer eocd = centralDirectory.duplicate();
+        eocd.position(eocdOffset);
+        chunkDigests.add(ApkSigner.digestChunk(eocd));
+
+        byte[] signingBlock;
+        try {
+            signingBlock = mSigner.createSigningBlock(ApkSigner.digestChunks(chunkDigests));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to sign " + mFile.getName(), e);
+        }
+        centralDirectory.putInt(eocdOffset + 16, (int) (dataEnd + signingBlock.length));
+
+        mChannel.position(dataEnd);
+        mPosition = dataEnd;
+        write(ByteBuffer.wrap(signingBlock));
+        write(centralDirectory);
+        flush();
+    }
+
+    /**
+     * Digests the chunks of the entries in parallel, chunks that lie before
+     * the end of the previous APK's entries are unchanged and reused.
+     */
+    private List<byte[]> digestEntryChunks(long dataEnd) throws IOException {
+        int count = (int) ((dataEnd + ApkSigner.CHUNK_SIZE - 1) / ApkSigner.CHUNK_SIZE);
+        List<Future<byte[]>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long start = (long) i * ApkSigner.CHUNK_SIZE;
+            long end = Math.min(start + ApkSigner.CHUNK_SIZE, dataEnd);
+            if (i < mPreviousChunkDigests.size() && end == start + ApkSigner.CHUNK_SIZE && end <= mPreviousDataEnd) {
+                FutureTask<byte[]> task = new FutureTask<>(mPreviousChunkDigests.get(i)::clone);
+                task.run();
+                tasks.add(task);
+                continue;
+            }
+            tasks.add(sExecutor.submit(() -> {
+                ByteBuffer chunk = ByteBuffer.allocate((int) (end - start));
+                while (chunk.hasRemaining()) {
+                    if (mChannel.read(chunk, start + chunk.position()) == -1) {
+                        throw new IOException("Unexpected end of " + mFile.getName());
+                    }
+                }
+                chunk.flip();
+                return ApkSigner.digestChunk(chunk);
+            }));
+        }
+        List<byte[]> digests = new ArrayList<>(count);
+        try {
+            for (Future<byte[]> task : tasks) {
+                digests.add(task.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to sign " + mFile.getName(), e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while signing " + mFile.getName());
+        }
+        return digests;
+    }
+
+    private void readIndex() {
+        if (!mIndexFile.exists() || !mFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)))) {
+            if (in.readInt() != INDEX_VERSION
+                    || in.readLong() != mFile.length()
+                    || in.readLong() != mFile.lastModified()
+                    || !in.readUTF().equals(getSigningKey())) {
+                return;
+            }
+            long dataEnd = in.readLong();
+            long waste = in.readLong();
+            int count = in.readInt();
+            Map<String, PendingEntry> entries = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                PendingEntry entry = new PendingEntry(in.readUTF(), in.readUTF(), null);
+                entry.mOffset = in.readLong();
+                entry.mRecordSize = in.readLong();
+                int method = in.readInt();
+                long crc = in.readLong();
+                long size = in.readLong();
+                int compressedSize = in.readInt();
+                byte[] digest = null;
+                int digestLength = in.readInt();
+                if (digestLength != -1) {
+                    digest = new byte[digestLength];
+                    in.readFully(digest);
+                }
+                entry.mWritten = new EntryData(method, crc, size, compressedSize, null, digest);
+                entries.put(entry.mName, entry);
+            }
+            int chunkCount = in.readInt();
+            List<byte[]> chunkDigests = new ArrayList<>(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                byte[] digest = new byte[in.readInt()];
+                in.readFully(digest);
+                chunkDigests.add(digest);
+            }
+            mPreviousChunkDigests = chunkDigests;
+            mPrevious = entries;
+            mPreviousDataEnd = dataEnd;
+            mPreviousWaste = waste;
+        } catch (IOException e) {
+            // written from scratch
+            mPrevious = null;
+        }
+    }
+
+    private void writeIndex(long dataEnd, long waste) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mIndexFile)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(mFile.length());
+            out.writeLong(mFile.lastModified());
+            out.writeUTF(getSigningKey());
+            out.writeLong(dataEnd);
+            out.writeLong(waste);
+            out.writeInt(mEntries.size());
+            for (PendingEntry entry : mEntries) {
+                out.writeUTF(entry.mName);
+                out.writeUTF(entry.mFingerprint);
+                out.writeLong(entry.mOffset);
+                out.writeLong(entry.mRecordSize);
+                out.writeInt(entry.mWritten.mMethod);
+                out.writeLong(entry.mWritten.mCrc);
+                out.writeLong(entry.mWritten.mSize);
+                out.writeInt(entry.mWritten.mCompressedSize);
+                if (entry.mWritten.mDigest == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(entry.mWritten.mDigest.length);
+                    out.write(entry.mWritten.mDigest);
+                }
+            }
+            out.writeInt(mChunkDigests.size());
+            for (byte[] digest : mChunkDigests) {
+                out.writeInt(digest.length);
+                out.write(digest);
+            }
+        }
+    }
+
+    /**
+     * @return what the digests kept in the index depend on, the index is
+     * discarded if it changes
+     */
+    private String getSigningKey() {
+        if (mSigner == null) {
+            return "";
+        }
+        return mSigner.isV1Enabled() ? "v1:" + mSigner.getV1DigestAlgorithm() : "v2";
+    }
+
+    private EntryData await(PendingEntry entry) throws IOException {
+        try {
+            return entry.mData.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to add " + entry.mName, e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while adding " + entry.mName);
+        }
+    }
+
+    private void writeLocalHeader(PendingEntry entry) throws IOException {
+        byte[] name = entry.mName.getBytes(StandardCharsets.UTF_8);
+        int alignment = getAlignment(entry);
+        int extraLength = 0;
+        if (alignment > 1) {
+            long dataOffset = mPosition + LOCAL_HEADER_SIZE + name.length;
+            extraLength = (int) ((alignment - dataOffset % alignment) % alignment);
+            // the padding is a whole extra field, so it can't be smaller than one
+            while (extraLength != 0 && extraLength < ALIGNMENT_EXTRA_MIN_SIZE) {
+                extraLength += alignment;
+            }
+        }
+        ensure(LOCAL_HEADER_SIZE + name.length + extraLength);
+        mBuffer.putInt(LOCAL_SIGNATURE);
+        mBuffer.putShort((short) VERSION_NEEDED);
+        mBuffer.putShort((short) FLAG_UTF8);
+        mBuffer.putShort((short) entry.mWritten.mMethod);
+        mBuffer.putShort((short) DOS_TIME);
+        mBuffer.putShort((short) DOS_DATE);
+        mBuffer.putInt((int) entry.mWritten.mCrc);
+        mBuffer.putInt(entry.mWritten.mCompressedSize);
+        mBuffer.putInt((int) entry.mWritten.mSize);
+        mBuffer.putShort((short) name.length);
+        mBuffer.putShort((short) extraLength);
+        mBuffer.put(name);
+        if (extraLength != 0) {
+            mBuffer.putShort((short) ALIGNMENT_EXTRA_ID);
+            mBuffer.putShort((short) (extraLength - 4));
+            mBuffer.putShort((short) alignment);
+            for (int i = ALIGNMENT_EXTRA_MIN_SIZE; i < extraLength; i++) {
+                mBuffer.put((byte) 0);
+            }
+        }
+        mPosition += LOCAL_HEADER_SIZE + name.length + extraLength;
+    }
+
+    /**
+     * @return the multiple the entry's data has to start at, 1 for compressed data
+     */
+    private static int getAlignment(PendingEntry entry) {
+        if (entry.mWritten.mMethod != MappedZipFile.METHOD_STORED) {
+            return 1;
+        }
+        if (entry.mName.startsWith("lib/") && entry.mName.endsWith(".so")) {
+            return NATIVE_LIBRARY_ALIGNMENT;
+        }
+        return ALIGNMENT;
+    }
+
+    private void writeCentralHeader(PendingEntry entry) throws IOException {
+        byte[] name = entry.mName.getBytes(StandardCharsets.UTF_8);
+        ensure(CENTRAL_HEADER_SIZE + name.length);
+        mBuffer.putInt(CENTRAL_SIGNATURE);
+        mBuffer.putShort((short) VERSION_NEEDED);
+        mBuffer.putShort((short) VERSION_NEEDED);
+        mBuffer.putShort((short) FLAG_UTF8);
+        mBuffer.putShort((short) entry.mWritten.mMethod);
+        mBuffer.putShort((short) DOS_TIME);
+        mBuffer.putShort((short) DOS_DATE);
+        mBuffer.putInt((int) entry.mWritten.mCrc);
+        mBuffer.putInt(entry.mWritten.mCompressedSize);
+        mBuffer.putInt((int) entry.mWritten.mSize);
+        mBuffer.putShort((short) name.length);
+        mBuffer.putShort((short) 0);
+        mBuffer.putShort((short) 0);
+        mBuffer.putShort((short) 0);
+        mBuffer.putShort((short) 0);
+        mBuffer.putInt(0);
+        mBuffer.putInt((int) entry.mOffset);
+        mBuffer.put(name);
+        mPosition += CENTRAL_HEADER_SIZE + name.length;
+    }
+
+    /**
+     * Makes room in the write buffer for a header.
+     */
+    private void ensure(int size) throws IOException {
+        if (mBuffer.remaining() < size) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes entry data, large data goes to the file directly instead of through the buffer.
+     */
+    private void write(ByteBuffer data) throws IOException {
+        mPosition += data.remaining();
+        if (data.remaining() <= mBuffer.remaining()) {
+            mBuffer.put(data);
+            return;
+        }
+        flush();
+        while (data.hasRemaining()) {
+            mChannel.write(data);
+        }
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
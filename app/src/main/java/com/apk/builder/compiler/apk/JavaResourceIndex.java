@@ -0,0 +1,138 @@
+package com.tyron.compiler.apk;
+
+import com.tyron.compiler.cache.BuildCache;
+import com.tyron.compiler.cache.Fingerprint;
+import com.tyron.compiler.zip.MappedZipFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Java resources of the libraries that get packaged, the entries of
+ * their jars accepted by {@link ApkWriter#JAVA_RESOURCES}.
+ *
+ * <p>Scanning a jar means reading its whole central directory, while most
+ * jars have no resources at all. The name, CRC, sizes and local header
+ * offset of the resources of every jar are cached in the build cache under
+ * the content hash of the jar, so a jar is only scanned once per version and
+ * its resources are copied from those offsets without reading it again.
+ *
+ * <p>A path can only be packaged once, the first library that has it wins
+ * and the others are reported by {@link #getDuplicates()}.
+ */
+public final class JavaResourceIndex {
+
+    private static final String CACHE_NAME = "java-resources";
+    private static final int INDEX_VERSION = 1;
+
+    private final Map<File, List<MappedZipFile.Entry>> mEntries = new LinkedHashMap<>();
+    // library that packages each path
+    private final Map<String, String> mOwners = new HashMap<>();
+    private final List<String> mDuplicates = new ArrayList<>();
+
+    /**
+     * Adds the resources of a library jar, except paths an earlier library already has.
+     *
+     * @param name name of the library, for {@link #getDuplicates()}
+     */
+    public void addJar(String name, File jar) throws IOException {
+        List<MappedZipFile.Entry> entries = new ArrayList<>();
+        for (MappedZipFile.Entry entry : getEntries(jar)) {
+            String owner = mOwners.get(entry.getName());
+            if (owner != null) {
+                mDuplicates.add(entry.getName() + " (" + owner + ", " + name + ")");
+                continue;
+            }
+            mOwners.put(entry.getName(), name);
+            entries.add(entry);
+        }
+        if (!entries.isEmpty()) {
+            mEntries.put(jar, entries);
+        }
+    }
+
+    /**
+     * Copies the resources into the APK, jars are only opened for entries
+     * the writer can't reuse from the previous APK.
+     */
+    public void addTo(ApkWriter writer) throws IOException {
+        for (Map.Entry<File, List<MappedZipFile.Entry>> entry : mEntries.entrySet()) {
+            writer.addZipEntries(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return the number of resources that are packaged
+     */
+    public int getResourceCount() {
+        return mOwners.size();
+    }
+
+    /**
+     * @return paths that are in more than one library, with the library that
+     * packages it and the one that was skipped
+     */
+    public List<String> getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * Gets the resources of a jar from the cache, scanning it if it isn't there yet.
+     */
+    private static List<MappedZipFile.Entry> getEntries(File jar) throws IOException {
+        File indexFile = new File(BuildCache.getDirectory(CACHE_NAME), Fingerprint.of(jar) + ".index");
+        if (indexFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (in.readInt() == INDEX_VERSION) {
+                    int count = in.readInt();
+                    List<MappedZipFile.Entry> entries = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        entries.add(new MappedZipFile.Entry(in.readUTF(), in.readInt(), in.readLong(),
+                                in.readLong(), in.readLong(), in.readLong()));
+                    }
+                    return entries;
+                }
+            } catch (IOException e) {
+                // scanned again
+            }
+        }
+
+        List<MappedZipFile.Entry> entries = new ArrayList<>();
+        MappedZipFile zip = new MappedZipFile(jar);
+        for (MappedZipFile.Entry entry : zip.getEntries()) {
+            if (!entry.isDirectory() && ApkWriter.JAVA_RESOURCES.accept(entry.getName())) {
+                entries.add(entry);
+            }
+        }
+
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(entries.size());
+            for (MappedZipFile.Entry entry : entries) {
+                out.writeUTF(entry.getName());
+                out.writeInt(entry.getMethod());
+                out.writeLong(entry.getCrc());
+                out.writeLong(entry.getCompressedSize());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getLocalHeaderOffset());
+            }
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to write " + indexFile);
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,26 @@
+package com.tyron.compiler.cache;
+
+import com.apk.builder.ApplicationLoader;
+
+import java.io.File;
+
+/**
+ * Location of the build caches that are shared between projects and builds.
+ * Everything stored here can be regenerated from its inputs.
+ */
+public final class BuildCache {
+
+    private BuildCache() {
+
+    }
+
+    /**
+     * @param name name of the cache, eg. {@code abi}
+     * @return the directory of the cache, created if needed
+     */
+    public static File getDirectory(String name) {
+        File dir = new File(ApplicationLoader.applicationContext.getCacheDir(), "build-cache/" + name);
+        dir.mkdirs();
+        return dir;
+    }
+}
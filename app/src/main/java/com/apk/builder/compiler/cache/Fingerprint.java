@@ -0,0 +1,115 @@
+package com.tyron.compiler.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Content hashes of files. A file is only hashed again when its size or
+ * modification time changes, so asking for the hash of an unchanged jar on
+ * every build is cheap.
+ */
+public final class Fingerprint {
+
+    private static final Map<String, Fingerprint> sFingerprints = new HashMap<>();
+
+    private final long mLength;
+    private final long mLastModified;
+    private final String mHash;
+
+    private Fingerprint(long length, long lastModified, String hash) {
+        mLength = length;
+        mLastModified = lastModified;
+        mHash = hash;
+    }
+
+    /**
+     * @return the hex encoded SHA-1 of the file's contents
+     */
+    public static String of(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized (sFingerprints) {
+            Fingerprint fingerprint = sFingerprints.get(key);
+            if (fingerprint != null
+                    && fingerprint.mLength == length
+                    && fingerprint.mLastModified == lastModified) {
+                return fingerprint.mHash;
+            }
+        }
+
+        MessageDigest digest = newDigest();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        String hash = toHex(digest.digest());
+
+        synchronized (sFingerprints) {
+            sFingerprints.put(key, new Fingerprint(length, lastModified, hash));
+        }
+        return hash;
+    }
+
+    /**
+     * Forgets the hash of a file that was just rewritten. A file rewritten with
+     * the same size within the resolution of its modification time would
+     * otherwise keep the hash of its old contents.
+     */
+    public static void invalidate(File file) {
+        synchronized (sFingerprints) {
+            sFingerprints.remove(file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Forgets the hashes of all files under a directory, for files rewritten by
+     * another process.
+     */
+    public static void invalidateDirectory(File dir) {
+        String prefix = dir.getAbsolutePath() + File.separator;
+        synchronized (sFingerprints) {
+            Iterator<String> iterator = sFingerprints.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().startsWith(prefix)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the hex encoded SHA-1 of the given bytes
+     */
+    public static String of(byte[] bytes) {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,340 @@
+package com.tyron.compiler.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The package, imports and top level type names of a Java source file, and
+ * the identifiers it uses. They are read with a small scanner over the mapped
+ * bytes of the file that skips comments and literals, without parsing the
+ * file. Headers are cached by the {@link Fingerprint} of the file, so a file
+ * is only scanned again when its contents change, not when it is only
+ * rewritten like the generated R.java.
+ */
+public final class SourceHeader {
+
+    private static final Map<String, SourceHeader> sHeaders = new HashMap<>();
+
+    private final String mFingerprint;
+
+    private String mPackageName = "";
+    private final List<String> mImports = new ArrayList<>();
+    private final List<String> mStaticImports = new ArrayList<>();
+    private final List<String> mTypeNames = new ArrayList<>();
+    private final Set<String> mIdentifiers = new HashSet<>();
+
+    private SourceHeader(String fingerprint) {
+        mFingerprint = fingerprint;
+    }
+
+    public static SourceHeader of(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        String fingerprint = Fingerprint.of(file);
+
+        synchronized (sHeaders) {
+            SourceHeader header = sHeaders.get(key);
+            if (header != null && header.mFingerprint.equals(fingerprint)) {
+                return header;
+            }
+        }
+
+        SourceHeader header = new SourceHeader(fingerprint);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            header.scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+
+        synchronized (sHeaders) {
+            sHeaders.put(key, header);
+        }
+        return header;
+    }
+
+    /**
+     * @return the package in dotted form, empty for the default package
+     */
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    /**
+     * @return the package as a relative directory, empty for the default package
+     */
+    public String getPackagePath() {
+        return mPackageName.replace('.', '/');
+    }
+
+    /**
+     * @return the single type and on demand imports, e.g. {@code java.util.List}
+     * or {@code java.util.*}
+     */
+    public List<String> getImports() {
+        return Collections.unmodifiableList(mImports);
+    }
+
+    public List<String> getStaticImports() {
+        return Collections.unmodifiableList(mStaticImports);
+    }
+
+    /**
+     * @return simple names of the top level classes, interfaces, enums,
+     * annotations and records declared in the file
+     */
+    public List<String> getTypeNames() {
+        return Collections.unmodifiableList(mTypeNames);
+    }
+
+    /**
+     * @return every identifier in the file outside of comments and literals,
+     * including annotation names, so the simple names of the types it uses
+     * are among them
+     */
+    public Set<String> getIdentifiers() {
+        return Collections.unmodifiableSet(mIdentifiers);
+    }
+
+    private void scan(ByteBuffer buffer) {
+        Scanner scanner = new Scanner(buffer);
+        int braces = 0;
+        int parentheses = 0;
+        String token;
+        while ((token = scanner.next()) != null) {
+            if (isIdentifier(token)) {
+                mIdentifiers.add(token);
+            }
+            switch (token) {
+                case "{":
+                    braces++;
+                    continue;
+                case "}":
+                    braces--;
+                    continue;
+                case "(":
+                    parentheses++;
+                    continue;
+                case ")":
+                    parentheses--;
+                    continue;
+            }
+            if (braces != 0 || parentheses != 0) {
+                continue;
+            }
+
+            switch (token) {
+                case "package":
+                    mPackageName = readQualifiedName(scanner, null);
+                    break;
+                case "import":
+                    String name = scanner.next();
+                    if ("static".equals(name)) {
+                        mStaticImports.add(readQualifiedName(scanner, null));
+                    } else {
+                        mImports.add(readQualifiedName(scanner, name));
+                    }
+                    break;
+                case "class":
+                case "interface":
+                case "enum":
+                case "record":
+                    String typeName = scanner.next();
+                    if (typeName == null) {
+                        break;
+                    }
+                    if (isIdentifier(typeName)) {
+                        mIdentifiers.add(typeName);
+                        mTypeNames.add(typeName);
+                    } else if (typeName.equals("{")) {
+                        braces++;
+                    }
+                    break;
+            }
+        }
+        mIdentifiers.addAll(scanner.mAnnotationNames);
+    }
+
+    /**
+     * Reads a dotted name up to the next semicolon.
+     */
+    private String readQualifiedName(Scanner scanner, String first) {
+        StringBuilder sb = new StringBuilder();
+        String token = first != null ? first : scanner.next();
+        while (token != null && !token.equals(";")) {
+            if (isIdentifier(token)) {
+                mIdentifiers.add(token);
+            }
+            sb.append(token);
+            token = scanner.next();
+        }
+        return sb.toString();
+    }
+
+    private static boolean isIdentifier(String token) {
+        char c = token.charAt(0);
+        return Character.isJavaIdentifierStart(c) || c > 0x7f;
+    }
+
+    /**
+     * Splits source bytes into identifiers and single character symbols,
+     * dropping whitespace, comments, literals and annotations.
+     */
+    private static class Scanner {
+
+        private final ByteBuffer mBuffer;
+        private final int mLimit;
+        private int mPosition;
+        // annotations are dropped from the tokens, but their types are still used
+        final Set<String> mAnnotationNames = new HashSet<>();
+
+        Scanner(ByteBuffer buffer) {
+            mBuffer = buffer;
+            mLimit = buffer.limit();
+        }
+
+        String next() {
+            while (mPosition < mLimit) {
+                int c = get(mPosition);
+                if (c == '/' && get(mPosition + 1) == '/') {
+                    skipLine();
+                } else if (c == '/' && get(mPosition + 1) == '*') {
+                    skipBlockComment();
+                } else if (c == '"' || c == '\'') {
+                    skipLiteral(c);
+                } else if (c == '@' && isIdentifierPart(get(mPosition + 1))) {
+                    // annotations, @interface is reported as interface
+                    mPosition++;
+                    String name = readIdentifier();
+                    if (name.equals("interface")) {
+                        return name;
+                    }
+                    mAnnotationNames.add(name);
+                    skipAnnotationArguments();
+                } else if (isIdentifierPart(c)) {
+                    return readIdentifier();
+                } else if (c <= ' ') {
+                    mPosition++;
+                } else {
+                    mPosition++;
+                    return String.valueOf((char) c);
+                }
+            }
+            return null;
+        }
+
+        private int get(int position) {
+            return position < mLimit ? mBuffer.get(position) & 0xff : -1;
+        }
+
+        private static boolean isIdentifierPart(int c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '$' || c >= 0x80;
+        }
+
+        private String readIdentifier() {
+            int start = mPosition;
+            while (isIdentifierPart(get(mPosition))) {
+                mPosition++;
+            }
+            byte[] bytes = new byte[mPosition - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = mBuffer.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void skipLine() {
+            while (mPosition < mLimit && get(mPosition) != '\n') {
+                mPosition++;
+            }
+        }
+
+        private void skipBlockComment() {
+            mPosition += 2;
+            while (mPosition < mLimit && !(get(mPosition) == '*' && get(mPosition + 1) == '/')) {
+                mPosition++;
+            }
+            mPosition += 2;
+        }
+
+        private void skipLiteral(int quote) {
+            if (quote == '"' && get(mPosition + 1) == '"' && get(mPosition + 2) == '"') {
+                // text block
+                mPosition += 3;
+                while (mPosition < mLimit && !(get(mPosition) == '"'
+                        && get(mPosition + 1) == '"' && get(mPosition + 2) == '"')) {
+                    mPosition += get(mPosition) == '\\' ? 2 : 1;
+                }
+                mPosition += 3;
+                return;
+            }
+            mPosition++;
+            while (mPosition < mLimit && get(mPosition) != quote && get(mPosition) != '\n') {
+                mPosition += get(mPosition) == '\\' ? 2 : 1;
+            }
+            mPosition++;
+        }
+
+        /**
+         * Skips the dotted rest of an annotation name and its parenthesized arguments.
+         */
+        private void skipAnnotationArguments() {
+            while (true) {
+                int start = mPosition;
+                skipWhitespaceAndComments();
+                if (get(mPosition) == '.' && isIdentifierPart(get(mPosition + 1))) {
+                    mPosition++;
+                    mAnnotationNames.add(readIdentifier());
+                } else if (get(mPosition) == '(') {
+                    break;
+                } else {
+                    mPosition = start;
+                    return;
+                }
+            }
+
+            int depth = 0;
+            while (mPosition < mLimit) {
+                int c = get(mPosition);
+                if (c == '"' || c == '\'') {
+                    skipLiteral(c);
+                    continue;
+                }
+                if (c == '/' && (get(mPosition + 1) == '/' || get(mPosition + 1) == '*')) {
+                    skipWhitespaceAndComments();
+                    continue;
+                }
+                mPosition++;
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void skipWhitespaceAndComments() {
+            while (mPosition < mLimit) {
+                int c = get(mPosition);
+                if (c == '/' && get(mPosition + 1) == '/') {
+                    skipLine();
+                } else if (c == '/' && get(mPosition + 1) == '*') {
+                    skipBlockComment();
+                } else if (c <= ' ') {
+                    mPosition++;
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+}
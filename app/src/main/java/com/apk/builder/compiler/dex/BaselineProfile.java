@@ -0,0 +1,363 @@
+package com.tyron.compiler.dex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compiles a human-readable ART profile into the binary baseline profile
+ * packaged as {@code assets/dexopt/baseline.prof}, with its
+ * {@code baseline.profm} metadata. The rules are resolved against the dex
+ * files of the app, so the profile holds their checksums and class and
+ * method indices and has to be compiled again whenever the dex changes.
+ *
+ * <p>The platform doesn't read these assets for side-loaded APKs. They are
+ * only used by {@code androidx.profileinstaller} running inside the app,
+ * which transcodes the profile to the version of the device and hands it to
+ * ART, or by Play when it converts them into a {@code .dm} file.
+ *
+ * <p>The profile is written in the format of Android 9 (version 010), and
+ * the metadata in version 002, which profileinstaller needs on Android 7 and
+ * on 12 and later.
+ */
+public final class BaselineProfile {
+
+    public static final String PROFILE_PATH = "assets/dexopt/baseline.prof";
+    public static final String METADATA_PATH = "assets/dexopt/baseline.profm";
+
+    private static final byte[] PROFILE_MAGIC = {'p', 'r', 'o', 0};
+    private static final byte[] PROFILE_VERSION = {'0', '1', '0', 0};
+    private static final byte[] METADATA_MAGIC = {'p', 'r', 'm', 0};
+    private static final byte[] METADATA_VERSION = {'0', '0', '2', 0};
+
+    private static final int FLAG_HOT = 1;
+    private static final int FLAG_STARTUP = 1 << 1;
+    private static final int FLAG_POST_STARTUP = 1 << 2;
+
+    private final List<DexData> mDexData = new ArrayList<>();
+    private int mMatchedRules;
+    private int mUnmatchedRules;
+
+    private BaselineProfile() {
+
+    }
+
+    /**
+     * Resolves the rules of a human-readable profile against dex files.
+     *
+     * @param dexFiles the dex files of the app in multidex order
+     */
+    public static BaselineProfile compile(File profileFile, List<File> dexFiles) throws IOException {
+        BaselineProfile profile = new BaselineProfile();
+        for (int i = 0; i < dexFiles.size(); i++) {
+            profile.mDexData.add(new DexData(DexOutput.getDexFileName(i),
+                    Files.readAllBytes(dexFiles.get(i).toPath())));
+        }
+
+        for (String line : Files.readAllLines(profileFile.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (profile.addRule(line)) {
+                profile.mMatchedRules++;
+            } else {
+                profile.mUnmatchedRules++;
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * @return the number of rules that matched a class or method of the dex files
+     */
+    public int getMatchedRuleCount() {
+        return mMatchedRules;
+    }
+
+    /**
+     * @return the number of rules naming classes or methods that are not in
+     * the dex files, or using wildcards, which are not supported
+     */
+    public int getUnmatchedRuleCount() {
+        return mUnmatchedRules;
+    }
+
+    private boolean addRule(String rule) {
+        int flags = 0;
+        int start = 0;
+        for (; start < rule.length(); start++) {
+            char c = rule.charAt(start);
+            if (c == 'H') {
+                flags |= FLAG_HOT;
+            } else if (c == 'S') {
+                flags |= FLAG_STARTUP;
+            } else if (c == 'P') {
+                flags |= FLAG_POST_STARTUP;
+            } else {
+                break;
+            }
+        }
+        String descriptor = rule.substring(start);
+        int arrow = descriptor.indexOf("->");
+        for (DexData dex : mDexData) {
+            if (arrow == -1) {
+                Integer typeIndex = dex.mClasses.get(descriptor);
+                if (typeIndex != null) {
+                    dex.mProfileClasses.add(typeIndex);
+                    return true;
+                }
+            } else {
+                Integer methodIndex = dex.mMethods.get(descriptor);
+                if (methodIndex != null) {
+                    Integer previous = dex.mProfileMethods.get(methodIndex);
+                    dex.mProfileMethods.put(methodIndex, flags | (previous == null ? 0 : previous));
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void writeProfile(File file) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        // all line headers first, then the data of every line in the same order
+        for (DexData dex : mDexData) {
+            byte[] key = dex.mName.getBytes(StandardCharsets.UTF_8);
+            writeUInt16(body, key.length);
+            writeUInt16(body, dex.mProfileClasses.size());
+            writeUInt32(body, dex.getHotMethodCount() * 4L);
+            writeUInt32(body, dex.mChecksum);
+            writeUInt32(body, dex.mMethodIdCount);
+            body.write(key);
+        }
+        for (DexData dex : mDexData) {
+            int lastIndex = 0;
+            for (Map.Entry<Integer, Integer> entry : dex.mProfileMethods.entrySet()) {
+                if ((entry.getValue() & FLAG_HOT) == 0) {
+                    continue;
+                }
+                writeUInt16(body, entry.getKey() - lastIndex);
+                // no inline caches
+                writeUInt16(body, 0);
+                lastIndex = entry.getKey();
+            }
+            writeClasses(body, dex);
+
+            // a startup bit for every method followed by a post startup bit for every method
+            byte[] bitmap = new byte[(dex.mMethodIdCount * 2 + 7) / 8];
+            for (Map.Entry<Integer, Integer> entry : dex.mProfileMethods.entrySet()) {
+                if ((entry.getValue() & FLAG_STARTUP) != 0) {
+                    setBit(bitmap, entry.getKey());
+                }
+                if ((entry.getValue() & FLAG_POST_STARTUP) != 0) {
+                    setBit(bitmap, entry.getKey() + dex.mMethodIdCount);
+                }
+            }
+            body.write(bitmap);
+        }
+
+        write(file, PROFILE_MAGIC, PROFILE_VERSION, out -> {
+            out.write(mDexData.size());
+            writeCompressed(out, body.toByteArray());
+        });
+    }
+
+    public void writeMetadata(File file) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < mDexData.size(); i++) {
+            DexData dex = mDexData.get(i);
+            byte[] key = dex.mName.getBytes(StandardCharsets.UTF_8);
+            writeUInt16(body, i);
+            writeUInt16(body, key.length);
+            body.write(key);
+            writeUInt32(body, dex.mTypeIdCount);
+            writeUInt16(body, dex.mProfileClasses.size());
+            writeClasses(body, dex);
+        }
+
+        write(file, METADATA_MAGIC, METADATA_VERSION, out -> {
+            writeUInt16(out, mDexData.size());
+            writeCompressed(out, body.toByteArray());
+        });
+    }
+
+    private interface BodyWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static void write(File file, byte[] magic, byte[] version, BodyWriter writer) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(magic);
+            out.write(version);
+            writer.write(out);
+        }
+    }
+
+    /**
+     * Writes the type indices of the profile's classes, each as the difference to the previous one.
+     */
+    private static void writeClasses(OutputStream out, DexData dex) throws IOException {
+        int lastIndex = 0;
+        for (int typeIndex : dex.mProfileClasses) {
+            writeUInt16(out, typeIndex - lastIndex);
+            lastIndex = typeIndex;
+        }
+    }
+
+    private static void writeCompressed(OutputStream out, byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream deflaterOut = new DeflaterOutputStream(compressed, deflater)) {
+            deflaterOut.write(data);
+        } finally {
+            deflater.end();
+        }
+        writeUInt32(out, data.length);
+        writeUInt32(out, compressed.size());
+        compressed.writeTo(out);
+    }
+
+    private static void setBit(byte[] bitmap, int bit) {
+        bitmap[bit / 8] |= 1 << (bit % 8);
+    }
+
+    private static void writeUInt16(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeUInt32(OutputStream out, long value) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.write((int) (value >>> (i * 8)) & 0xff);
+        }
+    }
+
+    /**
+     * The ids of a dex file the profile refers to. Only classes defined in
+     * the dex and their methods are indexed, a rule belongs to the dex file
+     * that defines its class.
+     */
+    private static class DexData {
+
+        private final String mName;
+        private final long mChecksum;
+        private final int mTypeIdCount;
+        private final int mMethodIdCount;
+
+        // type descriptor -> type index
+        private final Map<String, Integer> mClasses = new HashMap<>();
+        // Lclass;->name(parameters)return -> method index
+        private final Map<String, Integer> mMethods = new HashMap<>();
+
+        private final TreeSet<Integer> mProfileClasses = new TreeSet<>();
+        // method index -> flags
+        private final TreeMap<Integer, Integer> mProfileMethods = new TreeMap<>();
+
+        DexData(String name, byte[] bytes) throws IOException {
+            mName = name;
+            ByteBuffer dex = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (bytes.length < 0x70 || dex.get(0) != 'd' || dex.get(1) != 'e' || dex.get(2) != 'x') {
+                throw new IOException(name + " is not a dex file");
+            }
+            mChecksum = dex.getInt(0x08) & 0xffffffffL;
+            int stringIdsOffset = dex.getInt(0x3c);
+            mTypeIdCount = dex.getInt(0x40);
+            int typeIdsOffset = dex.getInt(0x44);
+            int protoIdsOffset = dex.getInt(0x4c);
+            mMethodIdCount = dex.getInt(0x58);
+            int methodIdsOffset = dex.getInt(0x5c);
+            int classDefCount = dex.getInt(0x60);
+            int classDefsOffset = dex.getInt(0x64);
+
+            String[] types = new String[mTypeIdCount];
+            for (int i = 0; i < mTypeIdCount; i++) {
+                types[i] = readString(dex, stringIdsOffset, dex.getInt(typeIdsOffset + i * 4));
+            }
+
+            boolean[] defined = new boolean[mTypeIdCount];
+            for (int i = 0; i < classDefCount; i++) {
+                // class_def_item is 32 bytes and starts with the type index of the class
+                int typeIndex = dex.getInt(classDefsOffset + i * 32);
+                defined[typeIndex] = true;
+                mClasses.put(types[typeIndex], typeIndex);
+            }
+
+            for (int i = 0; i < mMethodIdCount; i++) {
+                int item = methodIdsOffset + i * 8;
+                int classIndex = dex.getShort(item) & 0xffff;
+                if (!defined[classIndex]) {
+                    continue;
+                }
+                int protoIndex = dex.getShort(item + 2) & 0xffff;
+                String methodName = readString(dex, stringIdsOffset, dex.getInt(item + 4));
+
+                // proto_id_item: shorty, return type, parameters type list
+                int proto = protoIdsOffset + protoIndex * 12;
+                StringBuilder sb = new StringBuilder(types[classIndex]).append("->").append(methodName).append('(');
+                int parametersOffset = dex.getInt(proto + 8);
+                if (parametersOffset != 0) {
+                    int size = dex.getInt(parametersOffset);
+                    for (int j = 0; j < size; j++) {
+                        sb.append(types[dex.getShort(parametersOffset + 4 + j * 2) & 0xffff]);
+                    }
+                }
+                sb.append(')').append(types[dex.getInt(proto + 4)]);
+                mMethods.put(sb.toString(), i);
+            }
+        }
+
+        int getHotMethodCount() {
+            int count = 0;
+            for (int flags : mProfileMethods.values()) {
+                if ((flags & FLAG_HOT) != 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Reads a string of the dex, they are stored as modified UTF-8 after
+         * their length in UTF-16 units.
+         */
+        private static String readString(ByteBuffer dex, int stringIdsOffset, int index) {
+            int position = dex.getInt(stringIdsOffset + index * 4);
+            while ((dex.get(position++) & 0x80) != 0) {
+                // skips the uleb128 length
+            }
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int a = dex.get(position++) & 0xff;
+                if (a == 0) {
+                    return sb.toString();
+                }
+                if (a < 0x80) {
+                    sb.append((char) a);
+                } else if ((a & 0xe0) == 0xc0) {
+                    int b = dex.get(position++) & 0x3f;
+                    sb.append((char) (((a & 0x1f) << 6) | b));
+                } else {
+                    int b = dex.get(position++) & 0x3f;
+                    int c = dex.get(position++) & 0x3f;
+                    sb.append((char) (((a & 0x0f) << 12) | (b << 6) | c));
+                }
+            }
+        }
+    }
+}
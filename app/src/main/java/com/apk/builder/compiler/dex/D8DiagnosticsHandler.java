@@ -0,0 +1,60 @@
+package com.tyron.compiler.dex;
+
+import com.android.tools.r8.Diagnostic;
+import com.android.tools.r8.DiagnosticsHandler;
+import com.android.tools.r8.origin.Origin;
+import com.android.tools.r8.position.TextPosition;
+import com.apk.builder.logger.Logger;
+import com.tyron.compiler.diagnostics.CompilerDiagnostic;
+import com.tyron.compiler.diagnostics.DiagnosticCollector;
+
+/**
+ * Passes what D8 reports on to a {@link DiagnosticCollector}, with the
+ * class or jar it refers to, instead of letting it print to stderr.
+ */
+public class D8DiagnosticsHandler implements DiagnosticsHandler {
+
+    private final DiagnosticCollector mCollector;
+    private final Logger mLogger;
+    private final String mTag;
+
+    public D8DiagnosticsHandler(DiagnosticCollector collector, Logger logger, String tag) {
+        mCollector = collector;
+        mLogger = logger;
+        mTag = tag;
+    }
+
+    @Override
+    public void error(Diagnostic diagnostic) {
+        CompilerDiagnostic converted = convert(CompilerDiagnostic.Kind.ERROR, diagnostic);
+        if (mCollector.report(converted)) {
+            mLogger.e(mTag, converted.toString());
+        }
+    }
+
+    @Override
+    public void warning(Diagnostic diagnostic) {
+        CompilerDiagnostic converted = convert(CompilerDiagnostic.Kind.WARNING, diagnostic);
+        if (mCollector.report(converted)) {
+            mLogger.w(mTag, converted.toString());
+        }
+    }
+
+    @Override
+    public void info(Diagnostic diagnostic) {
+        mCollector.report(convert(CompilerDiagnostic.Kind.NOTE, diagnostic));
+    }
+
+    private static CompilerDiagnostic convert(CompilerDiagnostic.Kind kind, Diagnostic diagnostic) {
+        Origin origin = diagnostic.getOrigin();
+        String file = origin == null || origin == Origin.unknown() ? null : origin.toString();
+        long line = -1;
+        long column = -1;
+        if (diagnostic.getPosition() instanceof TextPosition) {
+            TextPosition position = (TextPosition) diagnostic.getPosition();
+            line = position.getLine();
+            column = position.getColumn();
+        }
+        return new CompilerDiagnostic(kind, file, line, column, diagnostic.getDiagnosticMessage());
+    }
+}
@@ -0,0 +1,68 @@
+package com.tyron.compiler.dex;
+
+import com.android.tools.r8.ByteDataView;
+import com.android.tools.r8.DexIndexedConsumer;
+import com.android.tools.r8.DiagnosticsHandler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps the dex files produced by D8 in memory, in the order of their index,
+ * so they can be packaged or written without D8 touching the disk.
+ */
+public class DexOutput implements DexIndexedConsumer {
+
+    private final Map<Integer, byte[]> mDexFiles = new TreeMap<>();
+
+    @Override
+    public synchronized void accept(int fileIndex, ByteDataView data, Set<String> descriptors,
+                                    DiagnosticsHandler handler) {
+        mDexFiles.put(fileIndex, data.copyByteData());
+    }
+
+    @Override
+    public void finished(DiagnosticsHandler handler) {
+
+    }
+
+    /**
+     * @return the contents of classes.dex, classes2.dex and so on
+     */
+    public synchronized List<byte[]> getDexFiles() {
+        return new ArrayList<>(mDexFiles.values());
+    }
+
+    /**
+     * @return the multidex name of the dex file at the given position
+     */
+    public static String getDexFileName(int index) {
+        return index == 0 ? "classes.dex" : "classes" + (index + 1) + ".dex";
+    }
+
+    /**
+     * Writes the dex files to the directory with their multidex names.
+     *
+     * @return the written files
+     */
+    public List<File> writeTo(File dir) throws IOException {
+        dir.mkdirs();
+        List<File> files = new ArrayList<>();
+        List<byte[]> dexFiles = getDexFiles();
+        for (int i = 0; i < dexFiles.size(); i++) {
+            File file = new File(dir, getDexFileName(i));
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(dexFiles.get(i));
+            }
+            files.add(file);
+        }
+        return files;
+    }
+}
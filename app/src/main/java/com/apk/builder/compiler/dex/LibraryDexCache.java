@@ -0,0 +1,134 @@
+package com.tyron.compiler.dex;
+
+import com.android.tools.r8.CompilationMode;
+import com.android.tools.r8.D8;
+import com.android.tools.r8.D8Command;
+import com.android.tools.r8.DiagnosticsHandler;
+import com.android.tools.r8.Version;
+import com.tyron.compiler.cache.BuildCache;
+import com.tyron.compiler.cache.Fingerprint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Dex files of libraries, shared between projects and builds. Entries are
+ * keyed by the content hash of the library's jar, the min api level and the
+ * D8 version, so a changed jar or a D8 update never reuses stale dex.
+ *
+ * <p>Missing entries are dexed on a worker pool, one library per thread, so
+ * they can be requested before the project's own sources are compiled and be
+ * ready by the time they are merged.
+ */
+public final class LibraryDexCache {
+
+    private static final String CACHE_NAME = "library-dex";
+
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1), runnable -> {
+                Thread thread = new Thread(runnable, "LibraryDexCache");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+
+    // cache key -> dexing in progress
+    private static final Map<String, Future<List<File>>> sPending = new HashMap<>();
+
+    private LibraryDexCache() {
+
+    }
+
+    /**
+     * Gets the dex files of a jar, dexing it in the background if they are not
+     * cached yet. Requesting a jar that is already being dexed returns the
+     * same task.
+     *
+     * @param handler receives the diagnostics of D8 if the jar has to be dexed
+     */
+    public static Future<List<File>> submit(File jar, int minApi, File androidJar,
+                                            DiagnosticsHandler handler) throws IOException {
+        String key = getKey(jar, minApi);
+        synchronized (sPending) {
+            Future<List<File>> pending = sPending.get(key);
+            if (pending != null && !pending.isDone()) {
+                return pending;
+            }
+            Future<List<File>> future = sExecutor.submit(() -> {
+                try {
+                    return dex(key, jar, minApi, androidJar, handler);
+                } finally {
+                    synchronized (sPending) {
+                        sPending.remove(key);
+                    }
+                }
+            });
+            sPending.put(key, future);
+            return future;
+        }
+    }
+
+    private static List<File> dex(String key, File jar, int minApi, File androidJar,
+                                  DiagnosticsHandler handler) throws Exception {
+        File dir = new File(BuildCache.getDirectory(CACHE_NAME), key);
+        if (dir.isDirectory()) {
+            return listDexFiles(dir);
+        }
+
+        DexOutput output = new DexOutput();
+        D8.run(D8Command.builder(handler)
+                .setMode(CompilationMode.RELEASE)
+                .setMinApiLevel(minApi)
+                .addLibraryFiles(androidJar.toPath())
+                .addProgramFiles(jar.toPath())
+                .setProgramConsumer(output)
+                .build());
+
+        // written next to the entry first so a partial entry is never seen as valid
+        File tempDir = new File(dir.getPath() + ".tmp");
+        deleteDirectory(tempDir);
+        output.writeTo(tempDir);
+        if (!tempDir.renameTo(dir)) {
+            deleteDirectory(tempDir);
+            throw new IOException("Unable to write " + dir);
+        }
+        return listDexFiles(dir);
+    }
+
+    private static String getKey(File jar, int minApi) throws IOException {
+        String key = Fingerprint.of(jar) + ":" + minApi + ":" + Version.getVersionString();
+        return Fingerprint.of(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the dex files of an entry in multidex order
+     */
+    private static List<File> listDexFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            File file = new File(dir, DexOutput.getDexFileName(i));
+            if (!file.exists()) {
+                return files;
+            }
+            files.add(file);
+        }
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,147 @@
+package com.tyron.compiler.dex;
+
+import com.android.tools.r8.TextInputStream;
+import com.android.tools.r8.origin.Origin;
+import com.android.tools.r8.origin.PathOrigin;
+import com.android.tools.r8.startup.StartupProfileBuilder;
+import com.android.tools.r8.startup.StartupProfileProvider;
+import com.tyron.compiler.cache.Fingerprint;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Classes and methods an app needs at launch, in the human-readable ART
+ * profile format, e.g. {@code Lcom/example/MainActivity;} or
+ * {@code HSPLcom/example/MainActivity;->onCreate(Landroid/os/Bundle;)V}.
+ * D8 places these classes first in the primary dex, in profile order, so
+ * they are loaded from one dex file at startup.
+ *
+ * <p>A profile can also be read from the output of an instrumented run,
+ * one dotted class name per line in the order the classes were loaded.
+ * Such a file is converted to class rules and can be saved with
+ * {@link #writeTo(File)} to be edited further.
+ */
+public final class StartupProfile {
+
+    private final File mFile;
+    private final List<String> mRules;
+
+    private StartupProfile(File file, List<String> rules) {
+        mFile = file;
+        mRules = rules;
+    }
+
+    /**
+     * Reads a human-readable profile or the class list of an instrumented
+     * run. Blank lines and lines starting with {@code #} are ignored.
+     */
+    public static StartupProfile read(File file) throws IOException {
+        // a class can be listed more than once, only its first position counts
+        Set<String> rules = new LinkedHashSet<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (isRule(line)) {
+                rules.add(line);
+            } else {
+                rules.add("L" + line.replace('.', '/') + ";");
+            }
+        }
+        return new StartupProfile(file, new ArrayList<>(rules));
+    }
+
+    /**
+     * @return true for lines of the human-readable format, which start with
+     * optional H, S and P flags followed by a type descriptor
+     */
+    private static boolean isRule(String line) {
+        int i = 0;
+        while (i < line.length() && "HSP".indexOf(line.charAt(i)) != -1) {
+            i++;
+        }
+        return i < line.length() && line.charAt(i) == 'L' && line.indexOf(';', i) != -1;
+    }
+
+    public List<String> getRules() {
+        return Collections.unmodifiableList(mRules);
+    }
+
+    /**
+     * @return the number of class rules, methods of the same class are not counted
+     */
+    public int getClassCount() {
+        int count = 0;
+        for (String rule : mRules) {
+            if (!rule.contains("->")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return a hash of the rules, changes when the layout they describe changes
+     */
+    public String getHash() {
+        return Fingerprint.of(getBytes());
+    }
+
+    /**
+     * Writes the profile in the human-readable format.
+     */
+    public void writeTo(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(getBytes());
+        }
+    }
+
+    public StartupProfileProvider toProvider() {
+        return new StartupProfileProvider() {
+            @Override
+            public void getStartupProfile(StartupProfileBuilder builder) {
+                builder.addHumanReadableArtProfile(new TextInputStream() {
+                    @Override
+                    public InputStream getInputStream() {
+                        return new ByteArrayInputStream(getBytes());
+                    }
+
+                    @Override
+                    public Charset getCharset() {
+                        return StandardCharsets.UTF_8;
+                    }
+                }, parser -> {
+
+                });
+            }
+
+            @Override
+            public Origin getOrigin() {
+                return new PathOrigin(mFile.toPath());
+            }
+        };
+    }
+
+    private byte[] getBytes() {
+        StringBuilder sb = new StringBuilder();
+        for (String rule : mRules) {
+            sb.append(rule).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
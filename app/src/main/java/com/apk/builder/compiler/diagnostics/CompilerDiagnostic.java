@@ -0,0 +1,87 @@
+package com.tyron.compiler.diagnostics;
+
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblem;
+
+/**
+ * A problem reported by one of the compilers, with the position it refers to.
+ */
+public class CompilerDiagnostic {
+
+    public enum Kind {
+        ERROR,
+        WARNING,
+        NOTE
+    }
+
+    private final Kind mKind;
+    private final String mFile;
+    private final long mLine;
+    private final long mColumn;
+    private final String mMessage;
+
+    /**
+     * @param file   path of the file the diagnostic refers to, may be null
+     * @param line   1 based line number, or -1 if unknown
+     * @param column 1 based column number, or -1 if unknown
+     */
+    public CompilerDiagnostic(Kind kind, String file, long line, long column, String message) {
+        mKind = kind;
+        mFile = file;
+        mLine = line;
+        mColumn = column;
+        mMessage = message;
+    }
+
+    /**
+     * Converts a problem reported by ECJ.
+     */
+    public static CompilerDiagnostic from(CategorizedProblem problem) {
+        Kind kind = problem.isError() ? Kind.ERROR : problem.isWarning() ? Kind.WARNING : Kind.NOTE;
+        String file = problem.getOriginatingFileName() == null
+                ? null : new String(problem.getOriginatingFileName());
+        long column = problem instanceof DefaultProblem
+                ? ((DefaultProblem) problem).getSourceColumnNumber() : -1;
+        return new CompilerDiagnostic(kind, file, problem.getSourceLineNumber(), column, problem.getMessage());
+    }
+
+    public Kind getKind() {
+        return mKind;
+    }
+
+    public boolean isError() {
+        return mKind == Kind.ERROR;
+    }
+
+    public String getFile() {
+        return mFile;
+    }
+
+    public long getLine() {
+        return mLine;
+    }
+
+    public long getColumn() {
+        return mColumn;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (mFile != null) {
+            sb.append(mFile);
+            if (mLine > 0) {
+                sb.append(':').append(mLine);
+                if (mColumn > 0) {
+                    sb.append(':').append(mColumn);
+                }
+            }
+            sb.append(": ");
+        }
+        return sb.append(mMessage).toString();
+    }
+}
@@ -0,0 +1,98 @@
+package com.tyron.compiler.diagnostics;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects the diagnostics of a build. Duplicates are dropped, and once the
+ * limit of a kind is reached further diagnostics of that kind are only
+ * counted, so a broken build with thousands of errors stays cheap to report
+ * and warnings never crowd out errors. Accepted diagnostics are
+ * passed on to the listeners right away.
+ */
+public class DiagnosticCollector {
+
+    public static final int DEFAULT_LIMIT = 500;
+
+    private final int mLimit;
+    private final List<CompilerDiagnostic> mDiagnostics = new ArrayList<>();
+    private final int[] mKindCounts = new int[CompilerDiagnostic.Kind.values().length];
+    private final Set<String> mKeys = new HashSet<>();
+    private final List<DiagnosticListener> mListeners = new CopyOnWriteArrayList<>();
+    private int mDroppedCount;
+    private int mErrorCount;
+
+    public DiagnosticCollector() {
+        this(DEFAULT_LIMIT);
+    }
+
+    /**
+     * @param limit maximum number of diagnostics kept of each kind
+     */
+    public DiagnosticCollector(int limit) {
+        mLimit = limit;
+    }
+
+    public void addListener(DiagnosticListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(DiagnosticListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return whether the diagnostic was kept, false if it is a duplicate or
+     * the limit of its kind has been reached
+     */
+    public boolean report(CompilerDiagnostic diagnostic) {
+        synchronized (this) {
+            if (diagnostic.isError()) {
+                mErrorCount++;
+            }
+            String key = diagnostic.getKind() + ":" + diagnostic;
+            if (mKeys.contains(key)) {
+                return false;
+            }
+            if (mKindCounts[diagnostic.getKind().ordinal()] >= mLimit) {
+                mDroppedCount++;
+                return false;
+            }
+            mKeys.add(key);
+            mKindCounts[diagnostic.getKind().ordinal()]++;
+            mDiagnostics.add(diagnostic);
+        }
+        for (DiagnosticListener listener : mListeners) {
+            listener.onDiagnostic(diagnostic);
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the kept diagnostics, in the order they were reported
+     */
+    public synchronized List<CompilerDiagnostic> getDiagnostics() {
+        return new ArrayList<>(mDiagnostics);
+    }
+
+    /**
+     * @return number of diagnostics that were not kept because of the limit
+     */
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return number of errors reported, including dropped ones
+     */
+    public synchronized int getErrorCount() {
+        return mErrorCount;
+    }
+
+    public synchronized boolean hasErrors() {
+        return mErrorCount > 0;
+    }
+}
@@ -0,0 +1,13 @@
+package com.tyron.compiler.diagnostics;
+
+/**
+ * Receives diagnostics as soon as a compiler reports them, before the
+ * compilation step finishes.
+ */
+public interface DiagnosticListener {
+
+    /**
+     * Called on the compiler's thread, possibly from several threads at once.
+     */
+    void onDiagnostic(CompilerDiagnostic diagnostic);
+}
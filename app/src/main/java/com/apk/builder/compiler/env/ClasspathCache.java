@@ -0,0 +1,111 @@
+package com.tyron.compiler.env;
+
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of classpath jars and the class files parsed from them.
+ * Jars stay mapped between builds and are only reopened when the file on
+ * disk changes, parsed classes are kept in a bounded LRU cache.
+ */
+public final class ClasspathCache {
+
+    private static final int MAX_CACHED_CLASSES = 4096;
+
+    private static final Map<String, ClasspathJar> sJars = new HashMap<>();
+
+    private static final Map<String, ClassFileReader> sClasses =
+            new LinkedHashMap<String, ClassFileReader>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ClassFileReader> eldest) {
+                    return size() > MAX_CACHED_CLASSES;
+                }
+            };
+
+    private ClasspathCache() {
+
+    }
+
+    /**
+     * Gets the cached jar for the given file, indexing it again if it has
+     * been modified since it was last opened.
+     */
+    public static ClasspathJar getJar(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        synchronized (sJars) {
+            ClasspathJar jar = sJars.get(key);
+            if (jar != null && jar.isUpToDate()) {
+                return jar;
+            }
+            if (jar != null) {
+                evictClasses(key);
+            }
+            jar = new ClasspathJar(file);
+            sJars.put(key, jar);
+            return jar;
+        }
+    }
+
+    /**
+     * Parses the given class from the jar, or returns a previously parsed copy.
+     *
+     * @return the class reader, or null if the jar doesn't contain the class
+     */
+    public static ClassFileReader getClass(ClasspathJar jar, String binaryName) {
+        String key = jar.getFile().getAbsolutePath() + "!" + binaryName;
+        synchronized (sClasses) {
+            ClassFileReader reader = sClasses.get(key);
+            if (reader != null) {
+                return reader;
+            }
+        }
+
+        ClassFileReader reader;
+        try {
+            byte[] bytes = jar.getClassBytes(binaryName);
+            if (bytes == null) {
+                return null;
+            }
+            // fully initialize so the reader can be shared between compilations
+            reader = new ClassFileReader(bytes, (binaryName + ".class").toCharArray(), true);
+        } catch (IOException | ClassFormatException e) {
+            return null;
+        }
+
+        synchronized (sClasses) {
+            sClasses.put(key, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * Drops every cached jar and class, eg. when memory is low.
+     */
+    public static void clear() {
+        synchronized (sJars) {
+            sJars.clear();
+        }
+        synchronized (sClasses) {
+            sClasses.clear();
+        }
+    }
+
+    private static void evictClasses(String jarPath) {
+        String prefix = jarPath + "!";
+        synchronized (sClasses) {
+            Iterator<String> iterator = sClasses.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().startsWith(prefix)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.tyron.compiler.env;
+
+import com.tyron.compiler.zip.MappedZipFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A jar on the compile classpath. The archive is mapped once and its package
+ * names are indexed so lookups don't touch the zip directory again. Jars that
+ * have a persisted {@link JarIndex} skip reading the central directory entirely.
+ */
+public class ClasspathJar {
+
+    private final File mFile;
+    private final long mLength;
+    private final long mLastModified;
+    private final MappedZipFile mZipFile;
+    private final Set<String> mPackages = new HashSet<>();
+    private final JarIndex mIndex;
+
+    ClasspathJar(File file) throws IOException {
+        mFile = file;
+        mLength = file.length();
+        mLastModified = file.lastModified();
+        mIndex = JarIndex.read(file);
+        mZipFile = new MappedZipFile(file, mIndex == null);
+
+        for (MappedZipFile.Entry entry : mZipFile.getEntries()) {
+            String name = entry.getName();
+            if (!name.endsWith(".class")) {
+                continue;
+            }
+            int index = name.lastIndexOf('/');
+            while (index > 0) {
+                if (!mPackages.add(name.substring(0, index))) {
+                    break;
+                }
+                index = name.lastIndexOf('/', index - 1);
+            }
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return whether the jar on disk is still the one that was indexed
+     */
+    public boolean isUpToDate() {
+        return mFile.length() == mLength && mFile.lastModified() == mLastModified;
+    }
+
+    /**
+     * @param name slash separated package name, eg. {@code android/widget}
+     */
+    public boolean isPackage(String name) {
+        if (mIndex != null) {
+            return mIndex.isPackage(name);
+        }
+        return mPackages.contains(name);
+    }
+
+    /**
+     * @param binaryName slash separated class name, eg. {@code android/widget/TextView}
+     * @return the class file bytes, or null if the jar doesn't contain the class
+     */
+    public byte[] getClassBytes(String binaryName) throws IOException {
+        if (mIndex != null) {
+            MappedZipFile.Entry entry = mIndex.findClass(binaryName);
+            return entry == null ? null : mZipFile.getBytes(entry);
+        }
+        return mZipFile.getBytes(binaryName + ".class");
+    }
+}
@@ -0,0 +1,234 @@
+package com.tyron.compiler.env;
+
+import com.tyron.compiler.zip.MappedZipFile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Precomputed index of the classes in a jar, persisted next to it as
+ * {@code <jar>.index}. It holds every package, the types in each package and
+ * where their entries start in the jar, so package and type lookups don't need
+ * to scan the zip's central directory.
+ *
+ * <p>Layout, big endian:
+ * <pre>
+ * int magic, int version, long jar length, long jar last modified
+ * int package count
+ *   per package (sorted): string name, int first type, int type count
+ * int type count
+ *   per type (sorted by package, then name): string simple name, int method,
+ *   int compressed size, int size, int local header offset
+ * </pre>
+ * Strings are stored as an unsigned short length followed by UTF-8 bytes.
+ */
+public class JarIndex {
+
+    private static final int MAGIC = 0x4a494458;
+    private static final int VERSION = 1;
+
+    private final Map<String, Integer> mPackages;
+    private final int[] mPackageStart;
+    private final int[] mPackageCount;
+
+    private final String[] mTypes;
+    private final int[] mMethods;
+    private final int[] mCompressedSizes;
+    private final int[] mSizes;
+    private final int[] mOffsets;
+
+    private JarIndex(MappedByteBuffer buffer) {
+        int packageCount = buffer.getInt();
+        mPackages = new HashMap<>(packageCount * 2);
+        mPackageStart = new int[packageCount];
+        mPackageCount = new int[packageCount];
+        for (int i = 0; i < packageCount; i++) {
+            mPackages.put(readString(buffer), i);
+            mPackageStart[i] = buffer.getInt();
+            mPackageCount[i] = buffer.getInt();
+        }
+
+        int typeCount = buffer.getInt();
+        mTypes = new String[typeCount];
+        mMethods = new int[typeCount];
+        mCompressedSizes = new int[typeCount];
+        mSizes = new int[typeCount];
+        mOffsets = new int[typeCount];
+        for (int i = 0; i < typeCount; i++) {
+            mTypes[i] = readString(buffer);
+            mMethods[i] = buffer.getInt();
+            mCompressedSizes[i] = buffer.getInt();
+            mSizes[i] = buffer.getInt();
+            mOffsets[i] = buffer.getInt();
+        }
+    }
+
+    public static File getIndexFile(File jar) {
+        return new File(jar.getPath() + ".index");
+    }
+
+    /**
+     * Loads the persisted index of the given jar.
+     *
+     * @return the index, or null if there is none or it was built for another version of the jar
+     */
+    public static JarIndex read(File jar) {
+        File indexFile = getIndexFile(jar);
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            if (buffer.getLong() != jar.length() || buffer.getLong() != jar.lastModified()) {
+                return null;
+            }
+            return new JarIndex(buffer);
+        } catch (IOException | RuntimeException e) {
+            // a truncated or corrupt index is simply rebuilt
+            return null;
+        }
+    }
+
+    /**
+     * Builds the index of the given jar and writes it next to it, unless an
+     * up to date index already exists.
+     */
+    public static void write(File jar) throws IOException {
+        if (read(jar) != null) {
+            return;
+        }
+
+        Map<String, Map<String, MappedZipFile.Entry>> packages = new TreeMap<>();
+        MappedZipFile zipFile = new MappedZipFile(jar);
+        for (MappedZipFile.Entry entry : zipFile.getEntries()) {
+            String name = entry.getName();
+            if (!name.endsWith(".class")) {
+                continue;
+            }
+            int index = name.lastIndexOf('/');
+            String packageName = index == -1 ? "" : name.substring(0, index);
+            String typeName = name.substring(index + 1, name.length() - ".class".length());
+
+            Map<String, MappedZipFile.Entry> types = packages.get(packageName);
+            if (types == null) {
+                types = new TreeMap<>();
+                packages.put(packageName, types);
+
+                // parent packages don't necessarily contain classes, but must still be known
+                int slash = packageName.lastIndexOf('/');
+                while (slash > 0) {
+                    String parent = packageName.substring(0, slash);
+                    if (packages.containsKey(parent)) {
+                        break;
+                    }
+                    packages.put(parent, new TreeMap<>());
+                    slash = parent.lastIndexOf('/');
+                }
+            }
+            types.put(typeName, entry);
+        }
+
+        File indexFile = getIndexFile(jar);
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(jar.length());
+            out.writeLong(jar.lastModified());
+
+            out.writeInt(packages.size());
+            int start = 0;
+            for (Map.Entry<String, Map<String, MappedZipFile.Entry>> entry : packages.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(start);
+                out.writeInt(entry.getValue().size());
+                start += entry.getValue().size();
+            }
+
+            out.writeInt(start);
+            for (Map<String, MappedZipFile.Entry> types : packages.values()) {
+                for (Map.Entry<String, MappedZipFile.Entry> type : types.entrySet()) {
+                    MappedZipFile.Entry entry = type.getValue();
+                    writeString(out, type.getKey());
+                    out.writeInt(entry.getMethod());
+                    out.writeInt((int) entry.getCompressedSize());
+                    out.writeInt((int) entry.getSize());
+                    out.writeInt((int) entry.getLocalHeaderOffset());
+                }
+            }
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to write " + indexFile);
+        }
+    }
+
+    /**
+     * @param name slash separated package name
+     */
+    public boolean isPackage(String name) {
+        return mPackages.containsKey(name);
+    }
+
+    /**
+     * @param binaryName slash separated class name
+     * @return the jar entry of the class, or null if the jar doesn't contain it
+     */
+    public MappedZipFile.Entry findClass(String binaryName) {
+        int index = binaryName.lastIndexOf('/');
+        Integer packageIndex = mPackages.get(index == -1 ? "" : binaryName.substring(0, index));
+        if (packageIndex == null) {
+            return null;
+        }
+
+        int start = mPackageStart[packageIndex];
+        int end = start + mPackageCount[packageIndex];
+        int type = Arrays.binarySearch(mTypes, start, end, binaryName.substring(index + 1));
+        if (type < 0) {
+            return null;
+        }
+        return new MappedZipFile.Entry(binaryName + ".class", mMethods[type], 0,
+                mCompressedSizes[type], mSizes[type], mOffsets[type]);
+    }
+
+    /**
+     * @return the simple names of the types in the given package, in sorted order
+     */
+    public String[] getTypes(String packageName) {
+        Integer packageIndex = mPackages.get(packageName);
+        if (packageIndex == null) {
+            return new String[0];
+        }
+        int start = mPackageStart[packageIndex];
+        return Arrays.copyOfRange(mTypes, start, start + mPackageCount[packageIndex]);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
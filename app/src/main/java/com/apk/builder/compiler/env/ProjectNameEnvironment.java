@@ -0,0 +1,109 @@
+package com.tyron.compiler.env;
+
+import org.eclipse.jdt.core.compiler.CharOperation;
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFileReader;
+import org.eclipse.jdt.internal.compiler.classfmt.ClassFormatException;
+import org.eclipse.jdt.internal.compiler.env.INameEnvironment;
+import org.eclipse.jdt.internal.compiler.env.NameEnvironmentAnswer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Name environment used by ECJ to resolve types. Binary types come from the
+ * shared {@link ClasspathCache}, so jars are not reopened and reparsed on
+ * every build; project types are answered from the class files compiled
+ * so far in this build if there are any, or else from the source directories.
+ */
+public class ProjectNameEnvironment implements INameEnvironment {
+
+    private final List<ClasspathJar> mJars = new ArrayList<>();
+    private final List<File> mSourceDirs;
+    // binary name -> class file written during this build
+    private final Map<String, File> mCompiledTypes = new ConcurrentHashMap<>();
+
+    /**
+     * @param classpath jars to resolve binary types from, in lookup order
+     * @param sourceDirs roots of the project's java sources, like the source directory
+     *                   and the one of the generated R.java, in lookup order
+     */
+    public ProjectNameEnvironment(List<File> classpath, List<File> sourceDirs) throws IOException {
+        for (File file : classpath) {
+            if (file.exists()) {
+                mJars.add(ClasspathCache.getJar(file));
+            }
+        }
+        mSourceDirs = sourceDirs;
+    }
+
+    /**
+     * Registers a class file compiled in this build, later lookups of the type
+     * read it instead of compiling its source again.
+     */
+    public void addCompiledType(String binaryName, File classFile) {
+        mCompiledTypes.put(binaryName, classFile);
+    }
+
+    @Override
+    public NameEnvironmentAnswer findType(char[][] compoundTypeName) {
+        return findType(new String(CharOperation.concatWith(compoundTypeName, '/')));
+    }
+
+    @Override
+    public NameEnvironmentAnswer findType(char[] typeName, char[][] packageName) {
+        return findType(new String(CharOperation.concatWith(packageName, typeName, '/')));
+    }
+
+    private NameEnvironmentAnswer findType(String binaryName) {
+        for (ClasspathJar jar : mJars) {
+            ClassFileReader reader = ClasspathCache.getClass(jar, binaryName);
+            if (reader != null) {
+                return new NameEnvironmentAnswer(reader, null);
+            }
+        }
+
+        File classFile = mCompiledTypes.get(binaryName);
+        if (classFile != null) {
+            try {
+                return new NameEnvironmentAnswer(ClassFileReader.read(classFile, true), null);
+            } catch (ClassFormatException | IOException e) {
+                // compile it from source instead
+            }
+        }
+
+        for (File sourceDir : mSourceDirs) {
+            File source = new File(sourceDir, binaryName + ".java");
+            if (source.isFile()) {
+                return new NameEnvironmentAnswer(
+                        new CompilationUnit(null, source.getAbsolutePath(), "UTF-8"), null);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isPackage(char[][] parentPackageName, char[] packageName) {
+        String name = new String(CharOperation.concatWith(parentPackageName, packageName, '/'));
+        for (ClasspathJar jar : mJars) {
+            if (jar.isPackage(name)) {
+                return true;
+            }
+        }
+        for (File sourceDir : mSourceDirs) {
+            if (new File(sourceDir, name).isDirectory()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void cleanup() {
+        // jars are owned by the ClasspathCache and stay open for the next build
+    }
+}
@@ -0,0 +1,139 @@
+package com.tyron.compiler.incremental;
+
+import com.apk.builder.model.Library;
+import com.apk.builder.model.Project;
+import com.tyron.compiler.Compiler;
+import com.tyron.compiler.abi.AbiJars;
+import com.tyron.compiler.cache.Fingerprint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Fingerprints of every compile classpath entry, recorded after each
+ * successful compilation. The ABI fingerprint of an entry changes only when
+ * something sources can compile against changes, the implementation
+ * fingerprint changes with any byte of the jar.
+ *
+ * <p>Comparing snapshots tells whether sources must be recompiled (an ABI
+ * changed) or only a library's dex needs to be refreshed.
+ */
+public class ClasspathSnapshot {
+
+    private static final String ANDROID_JAR = "android.jar";
+    private static final String LAMBDA_STUBS = "core-lambda-stubs.jar";
+
+    // entry name -> { abi fingerprint, implementation fingerprint }
+    private final Map<String, String[]> mEntries = new TreeMap<>();
+
+    private ClasspathSnapshot() {
+
+    }
+
+    /**
+     * Takes a snapshot of the current compile classpath of the project.
+     */
+    public static ClasspathSnapshot create(Compiler compiler, Project project) throws IOException {
+        ClasspathSnapshot snapshot = new ClasspathSnapshot();
+
+        String androidJar = Fingerprint.of(compiler.getAndroidJarFile());
+        snapshot.mEntries.put(ANDROID_JAR, new String[]{androidJar, androidJar});
+        String lambdaStubs = Fingerprint.of(compiler.getLambdaFactoryFile());
+        snapshot.mEntries.put(LAMBDA_STUBS, new String[]{lambdaStubs, lambdaStubs});
+
+        for (Library library : project.getLibraries()) {
+            if (!library.getClassJarFile().exists()) {
+                continue;
+            }
+            String implementation = Fingerprint.of(library.getClassJarFile());
+            String abi;
+            try {
+                abi = AbiJars.getAbiHash(library.getClassJarFile());
+            } catch (IOException e) {
+                // any change of the jar counts as an ABI change, like compiling against the full jar
+                abi = implementation;
+            }
+            snapshot.mEntries.put(library.getName(), new String[]{abi, implementation});
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the snapshot saved in the given file, or null if there is none
+     */
+    public static ClasspathSnapshot read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+
+        ClasspathSnapshot snapshot = new ClasspathSnapshot();
+        for (String name : properties.stringPropertyNames()) {
+            String[] fingerprints = properties.getProperty(name).split(":");
+            if (fingerprints.length != 2) {
+                return null;
+            }
+            snapshot.mEntries.put(name, fingerprints);
+        }
+        return snapshot;
+    }
+
+    public void write(File file) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, String[]> entry : mEntries.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue()[0] + ":" + entry.getValue()[1]);
+        }
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, null);
+        }
+    }
+
+    /**
+     * @return whether both snapshots have the same entries with the same ABI
+     */
+    public boolean hasSameAbi(ClasspathSnapshot other) {
+        if (!mEntries.keySet().equals(other.mEntries.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, String[]> entry : mEntries.entrySet()) {
+            if (!entry.getValue()[0].equals(other.mEntries.get(entry.getKey())[0])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return names of the libraries whose implementation changed since the
+     * given snapshot while their ABI stayed the same
+     */
+    public List<String> getImplementationChanges(ClasspathSnapshot previous) {
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String[]> entry : mEntries.entrySet()) {
+            String[] old = previous.mEntries.get(entry.getKey());
+            if (old == null || ANDROID_JAR.equals(entry.getKey()) || LAMBDA_STUBS.equals(entry.getKey())) {
+                continue;
+            }
+            if (old[0].equals(entry.getValue()[0]) && !old[1].equals(entry.getValue()[1])) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+}
@@ -3,115 +3,569 @@ package com.tyron.compiler.incremental;
 import com.apk.builder.model.Project;
 import com.apk.builder.model.Library;
 import com.tyron.compiler.Compiler;
+import com.tyron.compiler.cache.Fingerprint;
+import com.tyron.compiler.dex.D8DiagnosticsHandler;
+import com.tyron.compiler.dex.DexOutput;
+import com.tyron.compiler.dex.LibraryDexCache;
+import com.tyron.compiler.dex.StartupProfile;
 import com.tyron.compiler.exception.*;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.android.tools.r8.ByteDataView;
+import com.android.tools.r8.CompilationFailedException;
+import com.android.tools.r8.CompilationMode;
 import com.android.tools.r8.D8;
+import com.android.tools.r8.D8Command;
+import com.android.tools.r8.DexFilePerClassFileConsumer;
+import com.android.tools.r8.DiagnosticsHandler;
+import com.android.tools.r8.origin.PathOrigin;
 
 public class IncrementalD8Compiler extends Compiler {
     
 	private static final String TAG = "Incremental D8";
 	
+	private static final String MIN_API_KEY = "min-api";
+	private static final String APP_KEY = "app";
+	private static final String APP_DEX_COUNT_KEY = "app-dex-count";
+	private static final String LIBRARY_KEY = "libraries";
+	
+	//first api level that loads all classesN.dex files of an apk without a multidex library
+	private static final int NATIVE_MULTIDEX_API = 21;
+	private static final String CLASS_KEY_PREFIX = "class:";
+	private static final String PACKAGE_KEY_PREFIX = "package:";
+	
+	//class file bytes dexed by one D8 run, keeps the memory of a shard bounded on big apps
+	private static final long MAX_SHARD_BYTES = 2 * 1024 * 1024;
+	private static final int SHARD_THREADS = Runtime.getRuntime().availableProcessors();
+	
     private Project mProject;
     
+    private final Map<Library, Future<List<File>>> mLibraryDexFiles = new LinkedHashMap<>();
+    
     public IncrementalD8Compiler(Project project) {
         mProject = project;
         setTag(TAG);
     }
     
+    /**
+     * Starts dexing the libraries that are not in the library dex cache yet. Library dex
+     * doesn't depend on the project's sources, so this can be called before they are compiled.
+     */
     @Override
     public void prepare() {
-    
+        if (!mLibraryDexFiles.isEmpty()) {
+            return;
+        }
+        D8DiagnosticsHandler diagnostics = new D8DiagnosticsHandler(getDiagnosticCollector(), mProject.getLogger(), TAG);
+        //sorted so library dex always ends up in the same classesN.dex
+        List<Library> libraries = new ArrayList<>(mProject.getLibraries());
+        Collections.sort(libraries, (a, b) -> a.getName().compareTo(b.getName()));
+        for (Library library : libraries) {
+            if (!library.getClassJarFile().exists()) {
+                continue;
+            }
+            try {
+                mLibraryDexFiles.put(library, LibraryDexCache.submit(library.getClassJarFile(),
+                        mProject.getMinSdk(), getAndroidJarFile(), diagnostics));
+            } catch (IOException e) {
+                mProject.getLogger().e(TAG, library.getName() + ": " + e.getMessage());
+                setIsCompilationSuccessful(false);
+            }
+        }
     }
     
     @Override
-    public void run() throws CompilerException {
+    public void run() throws CompilerException, IOException {
         onProgressUpdate("Running...");
 	//	mProject.getLogger().d(TAG, "Running...");
+        prepare();
      
-        List<String> args = new ArrayList<>();
-        
-        args.add("--release");
-        args.add("--min-api"); 
-        args.add(String.valueOf(mProject.getMinSdk()));
-        args.add("--lib");
-        args.add(getAndroidJarFile().getAbsolutePath());
-        args.add("--output");
-        args.add(mProject.getOutputFile() + "/bin/");
-        
-        List<File> classes = getClassFiles(new File(mProject.getOutputFile() + "/intermediate/classes/"));
-		for (File file : classes) {
-		    args.add(file.getAbsolutePath());
-		}
-		
-		for (Library library : mProject.getLibraries()) {
-			
-			if (library.getDexFiles().isEmpty()) {
-				try {
-				    dexLibrary(library);
-				} catch (Exception e) {
-				    //throw new CompilerException(e.getMessage());
-                    mProject.getLogger().e(TAG, e.getMessage());
-                    setIsCompilationSuccessful(false);
-				}
-			}
-            for (File dexFile : library.getDexFiles()) {
-                args.add(dexFile.getAbsolutePath());
+        File classesDir = new File(mProject.getOutputFile() + "/intermediate/classes/");
+        File dexDir = new File(mProject.getOutputFile() + "/intermediate/dex/");
+        File indexFile = new File(dexDir, "index.properties");
+        
+        Properties previous = readIndex(indexFile);
+        Properties index = new Properties();
+        index.setProperty(MIN_API_KEY, String.valueOf(mProject.getMinSdk()));
+        boolean minApiChanged = !index.getProperty(MIN_API_KEY).equals(previous.getProperty(MIN_API_KEY));
+        
+        //only class files whose bytes changed since the last build are dexed again
+        List<File> changed = new ArrayList<>();
+        for (File classFile : getClassFiles(classesDir)) {
+            String path = classFile.getAbsolutePath();
+            if (!path.endsWith(".class")) {
+                continue;
+            }
+            String name = path.substring(classesDir.getAbsolutePath().length() + 1, path.length() - ".class".length());
+            String hash = Fingerprint.of(classFile);
+            index.setProperty(CLASS_KEY_PREFIX + name, hash);
+            
+            if (minApiChanged
+                    || !hash.equals(previous.getProperty(CLASS_KEY_PREFIX + name))
+                    || !getClassDexFile(dexDir, name).exists()) {
+                changed.add(classFile);
             }
         }
         
+        int removed = 0;
+        for (String key : previous.stringPropertyNames()) {
+            if (key.startsWith(CLASS_KEY_PREFIX) && !index.containsKey(key)) {
+                getClassDexFile(dexDir, key.substring(CLASS_KEY_PREFIX.length())).delete();
+                removed++;
+            }
+        }
+        
+        D8DiagnosticsHandler diagnostics = new D8DiagnosticsHandler(getDiagnosticCollector(), mProject.getLogger(), TAG);
+        
+        //class names by package path, sorted so the merged dex has a stable order
+        Map<String, List<String>> packages = new TreeMap<>();
+        for (String key : new TreeSet<>(index.stringPropertyNames())) {
+            if (key.startsWith(CLASS_KEY_PREFIX)) {
+                String name = key.substring(CLASS_KEY_PREFIX.length());
+                String packagePath = name.lastIndexOf('/') == -1 ? "" : name.substring(0, name.lastIndexOf('/'));
+                List<String> classes = packages.get(packagePath);
+                if (classes == null) {
+                    classes = new ArrayList<>();
+                    packages.put(packagePath, classes);
+                }
+                classes.add(name);
+            }
+        }
+        
+        List<File> packageDexFiles = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(SHARD_THREADS);
         try {
-            D8.main(args.toArray(new String[0]));
-        } catch (Exception e) {
-            //throw new CompilerException(e.getMessage());
-            mProject.getLogger().e(TAG, e.getMessage());
+            if (!changed.isEmpty()) {
+                List<List<File>> shards = getShards(classesDir, changed);
+                mProject.getLogger().d(TAG, "Dexing " + changed.size() + " changed class file(s) in " + shards.size() + " shard(s)");
+                
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (List<File> shard : shards) {
+                    tasks.add(() -> {
+                        dexShard(shard, dexDir, diagnostics);
+                        return null;
+                    });
+                }
+                runAll(executor, tasks);
+            }
+            
+            //the class dex of every package is merged into one intermediate dex, a package is
+            //only merged again when one of its classes changed
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (Map.Entry<String, List<String>> entry : packages.entrySet()) {
+                MessageDigest digest = Fingerprint.newDigest();
+                digest.update((index.getProperty(MIN_API_KEY) + "\n").getBytes(StandardCharsets.UTF_8));
+                for (String name : entry.getValue()) {
+                    digest.update((name + "=" + index.getProperty(CLASS_KEY_PREFIX + name) + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                String packageKey = PACKAGE_KEY_PREFIX + entry.getKey();
+                index.setProperty(packageKey, Fingerprint.toHex(digest.digest()));
+                
+                File packageDir = getPackageDexDir(dexDir, entry.getKey());
+                if (!index.getProperty(packageKey).equals(previous.getProperty(packageKey))
+                        || !new File(packageDir, DexOutput.getDexFileName(0)).exists()) {
+                    tasks.add(() -> {
+                        mergePackage(entry.getValue(), dexDir, packageDir, diagnostics);
+                        return null;
+                    });
+                }
+            }
+            for (String key : previous.stringPropertyNames()) {
+                if (key.startsWith(PACKAGE_KEY_PREFIX) && !index.containsKey(key)) {
+                    deleteDexDirectory(getPackageDexDir(dexDir, key.substring(PACKAGE_KEY_PREFIX.length())));
+                }
+            }
+            if (!tasks.isEmpty()) {
+                mProject.getLogger().d(TAG, "Merging " + tasks.size() + " changed package(s)");
+                runAll(executor, tasks);
+            }
+        } catch (CompilationFailedException e) {
+            //the errors were reported through the diagnostics handler, the index isn't
+            //saved so these classes are dexed again next time
             setIsCompilationSuccessful(false);
+            return;
+        } finally {
+            executor.shutdown();
+        }
+        for (String packagePath : packages.keySet()) {
+            packageDexFiles.addAll(listDexFiles(getPackageDexDir(dexDir, packagePath)));
+        }
+		
+        List<File> libraryDexFiles = new ArrayList<>();
+        for (Map.Entry<Library, Future<List<File>>> entry : mLibraryDexFiles.entrySet()) {
+            try {
+                libraryDexFiles.addAll(entry.getValue().get());
+            } catch (ExecutionException e) {
+                //D8 errors were reported through the diagnostics handler
+                if (!(e.getCause() instanceof CompilationFailedException)) {
+                    mProject.getLogger().e(TAG, entry.getKey().getName() + ": " + e.getCause().getMessage());
+                }
+                setIsCompilationSuccessful(false);
+            } catch (InterruptedException e) {
+                throw new CompilerException("Interrupted while dexing " + entry.getKey().getName());
+            }
+        }
+        if (!getIsCompilationSuccessful()) {
+            return;
         }
         
-        args.clear();
-       /* onProgressUpdate("D8 > Merging dex files");
+        //from api 21 the runtime loads every classesN.dex itself, so library dex doesn't need
+        //to be merged with the app's and is packaged as is after it. A startup profile can
+        //name library classes too, so they are merged to be laid out with the app's
+        StartupProfile startupProfile = readStartupProfile();
+        boolean separateLibraryDex = mProject.getMinSdk() >= NATIVE_MULTIDEX_API && startupProfile == null;
         
-        for (File file : getDexFiles()) {
-            args.add(file.getAbsolutePath());
+        MessageDigest digest = Fingerprint.newDigest();
+        for (File dexFile : libraryDexFiles) {
+            digest.update((dexFile.getAbsolutePath() + "=" + Fingerprint.of(dexFile) + "\n").getBytes(StandardCharsets.UTF_8));
         }
-        args.add("--output");
-		
-		File dexPath = new File(mProject.getWorkingDirectory() + "/bin/dex/");
-		dexPath.mkdirs();
-        args.add(dexPath.getAbsolutePath());
+        String libraryKey = Fingerprint.toHex(digest.digest());
+        
+        //the app's merge only depends on the class hashes, and on the libraries when they are merged too
+        digest = Fingerprint.newDigest();
+        for (String key : new TreeSet<>(index.stringPropertyNames())) {
+            digest.update((key + "=" + index.getProperty(key) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (!separateLibraryDex) {
+            digest.update(libraryKey.getBytes(StandardCharsets.UTF_8));
+        }
+        if (startupProfile != null) {
+            digest.update(startupProfile.getHash().getBytes(StandardCharsets.UTF_8));
+        }
+        String appKey = Fingerprint.toHex(digest.digest());
+        index.setProperty(APP_KEY, appKey);
+        index.setProperty(LIBRARY_KEY, libraryKey);
         
-        for (Library library : mProject.getLibraries()) {
-            for (File dexFile : library.getDexFiles()) {
-                args.add(dexFile.getAbsolutePath());
+        //the merged app dex is kept with the other intermediates, bin is emptied before every build
+        File appDexDir = new File(dexDir, "app");
+        File binDir = new File(mProject.getOutputFile(), "bin");
+        boolean appUpToDate = changed.isEmpty() && removed == 0
+                && appKey.equals(previous.getProperty(APP_KEY))
+                && previous.getProperty(APP_DEX_COUNT_KEY) != null
+                && new File(appDexDir, DexOutput.getDexFileName(0)).exists();
+        
+        int appDexCount;
+        if (appUpToDate) {
+            appDexCount = Integer.parseInt(previous.getProperty(APP_DEX_COUNT_KEY));
+            if (libraryKey.equals(previous.getProperty(LIBRARY_KEY))) {
+                mProject.getLogger().d(TAG, "Dex files are up to date, skipping dexing.");
+            }
+        } else {
+            DexOutput output = new DexOutput();
+            try {
+                D8Command.Builder builder = D8Command.builder(diagnostics)
+                        .setMode(CompilationMode.RELEASE)
+                        .setMinApiLevel(mProject.getMinSdk())
+                        .setProgramConsumer(output);
+                List<File> inputs = new ArrayList<>(packageDexFiles);
+                if (!separateLibraryDex) {
+                    inputs.addAll(libraryDexFiles);
+                }
+                if (startupProfile != null) {
+                    builder.addStartupProfileProviders(startupProfile.toProvider());
+                    mProject.getLogger().d(TAG, "Laying out " + startupProfile.getClassCount() + " startup class(es) first in the primary dex");
+                }
+                for (File file : inputs) {
+                    builder.addDexProgramData(Files.readAllBytes(file.toPath()), new PathOrigin(file.toPath()));
+                }
+                D8.run(builder.build());
+            } catch (CompilationFailedException e) {
+                setIsCompilationSuccessful(false);
+                return;
             }
+            
+            //a smaller merge result must not leave dex files of the previous one behind
+            deleteDexFiles(appDexDir, 0);
+            appDexCount = output.writeTo(appDexDir).size();
+        }
+        index.setProperty(APP_DEX_COUNT_KEY, String.valueOf(appDexCount));
+        
+        deleteDexFiles(binDir, 0);
+        for (int i = 0; i < appDexCount; i++) {
+            Files.copy(new File(appDexDir, DexOutput.getDexFileName(i)).toPath(),
+                    new File(binDir, DexOutput.getDexFileName(i)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (separateLibraryDex) {
+            int dexIndex = appDexCount;
+            for (File dexFile : libraryDexFiles) {
+                Files.copy(dexFile.toPath(), new File(binDir, DexOutput.getDexFileName(dexIndex++)).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            mProject.getLogger().d(TAG, "Added " + libraryDexFiles.size() + " library dex file(s) after the app's " + appDexCount);
         }
-        try {
-            D8.main(args.toArray(new String[0]));
-        } catch (Exception e) {
-            throw new CompilerException(e.getMessage());
-        }*/
         
+        writeIndex(indexFile, index);
     }
     
-    public List<File> getDexFiles() {
-        List<File> files = new ArrayList<>();
-        
-        File[] fileArr = new File(mProject.getOutputFile(), "/bin/classes/").listFiles();
-        
-        if (fileArr == null) {
-            return files;
+    /**
+     * Splits class files into shards of whole packages where possible. A shard
+     * holds at most {@link #MAX_SHARD_BYTES} of class files, which bounds the
+     * memory D8 needs for it; larger packages are split over several shards.
+     */
+    private List<List<File>> getShards(File classesDir, List<File> classFiles) {
+        Map<String, List<File>> packages = new TreeMap<>();
+        for (File classFile : classFiles) {
+            String packagePath = classFile.getParentFile().getAbsolutePath()
+                    .substring(classesDir.getAbsolutePath().length());
+            List<File> files = packages.get(packagePath);
+            if (files == null) {
+                files = new ArrayList<>();
+                packages.put(packagePath, files);
+            }
+            files.add(classFile);
         }
         
-        for (File file : fileArr) {
-            if (file.getName().startsWith("classes") && file.getName().endsWith(".dex")) {
-                files.add(file);
+        List<List<File>> shards = new ArrayList<>();
+        List<File> shard = new ArrayList<>();
+        long shardBytes = 0;
+        for (List<File> files : packages.values()) {
+            long packageBytes = 0;
+            for (File file : files) {
+                packageBytes += file.length();
+            }
+            //small packages share a shard, a package only starts a new one if it doesn't fit
+            if (!shard.isEmpty() && shardBytes + packageBytes > MAX_SHARD_BYTES) {
+                shards.add(shard);
+                shard = new ArrayList<>();
+                shardBytes = 0;
+            }
+            for (File file : files) {
+                if (!shard.isEmpty() && shardBytes + file.length() > MAX_SHARD_BYTES) {
+                    shards.add(shard);
+                    shard = new ArrayList<>();
+                    shardBytes = 0;
+                }
+                shard.add(file);
+                shardBytes += file.length();
+            }
+        }
+        if (!shard.isEmpty()) {
+            shards.add(shard);
+        }
+        return shards;
+    }
+    
+    /**
+     * Dexes the class files of a shard into one intermediate dex per class.
+     */
+    private void dexShard(List<File> classFiles, File dexDir, DiagnosticsHandler diagnostics)
+            throws CompilationFailedException, IOException {
+        List<IOException> writeErrors = Collections.synchronizedList(new ArrayList<>());
+        D8Command.Builder builder = D8Command.builder(diagnostics)
+                .setMode(CompilationMode.RELEASE)
+                .setMinApiLevel(mProject.getMinSdk())
+                .setIntermediate(true)
+                .addLibraryFiles(getAndroidJarFile().toPath());
+        for (File file : classFiles) {
+            builder.addClassProgramData(Files.readAllBytes(file.toPath()), new PathOrigin(file.toPath()));
+        }
+        //one dex per class file, synthetic classes like lambdas go with the class they come from
+        builder.setProgramConsumer(new DexFilePerClassFileConsumer() {
+            @Override
+            public void accept(String primaryClassDescriptor, ByteDataView data,
+                               Set<String> descriptors, DiagnosticsHandler handler) {
+                String name = primaryClassDescriptor.substring(1, primaryClassDescriptor.length() - 1);
+                File dexFile = getClassDexFile(dexDir, name);
+                dexFile.getParentFile().mkdirs();
+                try (OutputStream out = new FileOutputStream(dexFile)) {
+                    out.write(data.getBuffer(), data.getOffset(), data.getLength());
+                } catch (IOException e) {
+                    writeErrors.add(e);
+                }
+            }
+            
+            @Override
+            public void finished(DiagnosticsHandler handler) {
+                
             }
+        });
+        runD8(builder.build());
+        if (!writeErrors.isEmpty()) {
+            throw writeErrors.get(0);
+        }
+    }
+    
+    /**
+     * Merges the class dex of a package into the intermediate dex of the package.
+     */
+    private void mergePackage(List<String> classNames, File dexDir, File packageDir,
+                              DiagnosticsHandler diagnostics) throws CompilationFailedException, IOException {
+        DexOutput output = new DexOutput();
+        D8Command.Builder builder = D8Command.builder(diagnostics)
+                .setMode(CompilationMode.RELEASE)
+                .setMinApiLevel(mProject.getMinSdk())
+                .setIntermediate(true)
+                .setProgramConsumer(output);
+        for (String name : classNames) {
+            File file = getClassDexFile(dexDir, name);
+            builder.addDexProgramData(Files.readAllBytes(file.toPath()), new PathOrigin(file.toPath()));
         }
+        runD8(builder.build());
         
-        return files;
+        deleteDexDirectory(packageDir);
+        output.writeTo(packageDir);
+    }
+    
+    /**
+     * Runs D8 on a thread of its own. The shards are already dexed in parallel,
+     * so every D8 run only gets one thread and the total stays at the core count.
+     */
+    private static void runD8(D8Command command) throws CompilationFailedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            D8.run(command, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Runs the tasks on the executor and waits for all of them.
+     */
+    private static void runAll(ExecutorService executor, List<Callable<Void>> tasks)
+            throws CompilerException, CompilationFailedException, IOException {
+        List<Future<Void>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            throw new CompilerException("Interrupted while dexing");
+        }
+        CompilationFailedException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CompilationFailedException) {
+                    failure = (CompilationFailedException) e.getCause();
+                } else if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else {
+                    throw new CompilerException(String.valueOf(e.getCause()));
+                }
+            } catch (InterruptedException e) {
+                throw new CompilerException("Interrupted while dexing");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    private File getPackageDexDir(File dexDir, String packagePath) {
+        //the default package can't clash with a real one since default is a keyword
+        return new File(dexDir, "packages/" + (packagePath.isEmpty() ? "default" : packagePath.replace('/', '.')));
+    }
+    
+    /**
+     * @return the dex files of a directory in multidex order
+     */
+    private List<File> listDexFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            File file = new File(dir, DexOutput.getDexFileName(i));
+            if (!file.exists()) {
+                return files;
+            }
+            files.add(file);
+        }
+    }
+    
+    private void deleteDexDirectory(File dir) {
+        deleteDexFiles(dir, 0);
+        dir.delete();
+    }
+    
+    /**
+     * @return the startup profile of the project, or null if it has none or it can't be read
+     */
+    private StartupProfile readStartupProfile() {
+        File file = mProject.getStartupProfileFile();
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            return StartupProfile.read(file);
+        } catch (IOException e) {
+            mProject.getLogger().w(TAG, "Unable to read the startup profile: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Deletes the classesN.dex files of the directory from the given multidex position on.
+     */
+    private void deleteDexFiles(File dir, int fromIndex) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith("classes") || !name.endsWith(".dex")) {
+                continue;
+            }
+            String number = name.substring("classes".length(), name.length() - ".dex".length());
+            if (!number.matches("[0-9]*")) {
+                continue;
+            }
+            int index = number.isEmpty() ? 0 : Integer.parseInt(number) - 1;
+            if (index >= fromIndex) {
+                file.delete();
+            }
+        }
+    }
+    
+    /**
+     * Gets the intermediate dex of a class file, D8 names it after the class like the class file.
+     */
+    private File getClassDexFile(File dexDir, String className) {
+        return new File(dexDir, "classes/" + className + ".dex");
+    }
+    
+    private Properties readIndex(File file) {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                mProject.getLogger().w(TAG, "Unable to read the dex index, dexing all classes");
+                properties.clear();
+            }
+        }
+        return properties;
+    }
+    
+    private void writeIndex(File file, Properties index) {
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            index.store(out, null);
+        } catch (IOException e) {
+            mProject.getLogger().w(TAG, "Unable to save the dex index: " + e.getMessage());
+        }
     }
     
     private List<File> getClassFiles(File dir) {
@@ -131,22 +585,4 @@ public class IncrementalD8Compiler extends Compiler {
         
         return files;
     }
-	
-	private void dexLibrary(Library library) throws Exception {
-		
-		mProject.getLogger().d(TAG, "Library " + library.getName() + " does not have a dex file, generating one");
-		
-		List<String> args = new ArrayList<>();
-		args.add("--release");
-        args.add("--min-api"); 
-        args.add(String.valueOf(mProject.getMinSdk()));
-		args.add("--lib");
-		args.add(getAndroidJarFile().getAbsolutePath());
-		args.add("--output");
-		args.add(library.getPath().getAbsolutePath());
-		args.add(library.getClassJarFile().getAbsolutePath());
-	
-        D8.main(args.toArray(new String[0]));
-        
-	}
 }
\ No newline at end of file
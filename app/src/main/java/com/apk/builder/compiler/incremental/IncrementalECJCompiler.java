@@ -1,31 +1,64 @@
 package com.tyron.compiler.incremental;
 
 import com.tyron.compiler.Compiler;
+import com.tyron.compiler.cache.Fingerprint;
+import com.tyron.compiler.cache.SourceHeader;
+import com.tyron.compiler.diagnostics.CompilerDiagnostic;
 import com.tyron.compiler.exception.CompilerException;
 import com.tyron.compiler.incremental.file.JavaFile;
 
 import com.apk.builder.FileUtil;
 import com.apk.builder.model.Project;
 import com.apk.builder.model.Library;
-import org.eclipse.jdt.internal.compiler.batch.Main;
+import com.tyron.compiler.env.ProjectNameEnvironment;
+
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies;
+import org.eclipse.jdt.internal.compiler.ICompilerRequestor;
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.io.BufferedReader;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintWriter;
 
 public class IncrementalECJCompiler extends Compiler {
     
 	private static final String TAG = "Incetemental ECJ";
 	
+	//below this many files per thread, compiling in parallel isn't worth it
+	private static final int MIN_FILES_PER_THREAD = 16;
+	
+	//files edited within this long of the newest one are part of the current edit
+	private static final long RECENT_EDIT_WINDOW = 60 * 1000;
+	private static final int MAX_RECENT_FILES = 8;
+	
+	//rough heap ECJ needs per byte of source for its ASTs, bindings and class files
+	private static final int HEAP_PER_SOURCE_BYTE = 64;
+	
 	private Project mProject;
 	
 	private List<File> filesToCompile;
 	
+	private ClasspathSnapshot mClasspathSnapshot;
+	
 	public IncrementalECJCompiler(Project project) {
 		mProject = project;
         setTag(TAG);
@@ -34,10 +67,12 @@ public class IncrementalECJCompiler extends Compiler {
 	@Override
 	public void prepare() {
 		
+		checkClasspath();
+		
 		List<JavaFile> oldFiles = findJavaFiles(new File(mProject.getOutputFile() + "/intermediate/java"));
 		List<JavaFile> newFiles = new ArrayList<>();
 		newFiles.addAll(findJavaFiles(mProject.getJavaFile()));
-		newFiles.addAll(findJavaFiles(new File(mProject.getOutputFile() + "/gen")));
+		newFiles.addAll(findJavaFiles(getGenDir()));
 		
 		filesToCompile = getModifiedFiles(oldFiles, newFiles);
 	}
@@ -47,66 +82,320 @@ public class IncrementalECJCompiler extends Compiler {
 		
 		if (filesToCompile.isEmpty()) {
 		    mProject.getLogger().d(TAG, "Files are up to date, skipping compilation.");
+			saveClasspathSnapshot();
 			return;
 		}
 		
 		mProject.getLogger().d(TAG, "Found " + filesToCompile.size() + " file(s) that are modified.");
 		
-		CompilerOutputStream errorOutputStream = new CompilerOutputStream(new StringBuffer());
-        PrintWriter errWriter = new PrintWriter(errorOutputStream);
-
-        CompilerOutputStream outputStream = new CompilerOutputStream(new StringBuffer());
-        PrintWriter outWriter = new PrintWriter(outputStream);
+		List<File> classpath = new ArrayList<>();
+		classpath.add(getAndroidJarFile());
+		for (Library library : mProject.getLibraries()) {
+			classpath.add(getCompileJarFile(library));
+		}
+		classpath.add(getLambdaFactoryFile());
 		
-		ArrayList<String> args = new ArrayList<>();
-		//TODO: make this user changeable
-		args.add("-1.8");
-		args.add("-nowarn");
-		args.add("-d");
-		args.add(mProject.getOutputFile() + "/intermediate/classes");
-		args.add("-proc:none");
+		//jars are shared with previous builds through the ClasspathCache, sources that are not
+		//compiled in this run are resolved from the source directory and the generated R.java
+		ProjectNameEnvironment environment = new ProjectNameEnvironment(classpath,
+				Arrays.asList(mProject.getJavaFile(), getGenDir()));
 		
-		args.add("-cp");
-		StringBuilder libraryString = new StringBuilder();
+		File outputDir = new File(mProject.getOutputFile() + "/intermediate/classes");
+		List<CompilerDiagnostic> diagnostics = Collections.synchronizedList(new ArrayList<>());
 		
-		libraryString.append(getAndroidJarFile().getAbsolutePath());
-		libraryString.append(":");
-		for (Library library : mProject.getLibraries()) {
-			File classFile = library.getClassJarFile();
-			if (classFile.exists()) {
-				libraryString.append(classFile.getAbsolutePath());
-				libraryString.append(":");
+		//the files just edited are compiled on their own first, so their errors show up
+		//without waiting for the rest
+		List<File> remaining = filesToCompile;
+		List<File> sources = getProjectSources();
+		List<File> recent = getRecentlyEditedFiles(sources);
+		//generated sources like R.java are rewritten on every build, they don't count as other
+		//files worth splitting off from
+		if (!recent.isEmpty() && recent.size() < sources.size()) {
+			mProject.getLogger().d(TAG, "Compiling " + recent.size() + " recently edited file(s) first");
+			compile(environment, recent, outputDir, diagnostics);
+			remaining = new ArrayList<>(filesToCompile);
+			remaining.removeAll(recent);
+			
+			if (!getIsCompilationSuccessful()) {
+				mProject.getLogger().w(TAG, "Errors in recently edited files, skipping " + remaining.size() + " other file(s)");
+				remaining = Collections.emptyList();
 			}
 		}
-	   
-		libraryString.append(getLambdaFactoryFile().getAbsolutePath());
-		libraryString.append(":");
-		libraryString.append(mProject.getJavaFile() + "");
-		args.add(libraryString.toString());
 		
-		args.add("-sourcepath");
-		//workaround to allow ecj to compile multiple paths
-		args.add(" ");
-		for (File file : filesToCompile) {
-			args.add(file.getAbsolutePath());
-		}
-		Main main = new Main(outWriter, errWriter, false, null, null);
+		if (!remaining.isEmpty()) {
+			long sourceSize = 0;
+			for (File file : remaining) {
+				sourceSize += file.length();
+			}
+			long maxBatchSize = getMemoryBudget() / HEAP_PER_SOURCE_BYTE;
 		
-		main.compile(args.toArray(new String[0]));
+			if (sourceSize > maxBatchSize) {
+				compileInBatches(environment, remaining, maxBatchSize, outputDir, diagnostics);
+			} else {
+				int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+						remaining.size() / MIN_FILES_PER_THREAD);
+				List<List<File>> partitions = Collections.singletonList(remaining);
+				if (threads > 1) {
+					SourcePartitioner partitioner = new SourcePartitioner(remaining);
+					//files like R.java that many others use are compiled once up front, the partitions
+					//resolve them from their class files instead of all ending up in one partition
+					List<File> sharedLeaves = partitioner.getSharedLeaves();
+					if (!sharedLeaves.isEmpty()) {
+						mProject.getLogger().d(TAG, "Compiling " + sharedLeaves.size() + " shared file(s) first");
+						compile(environment, sharedLeaves, outputDir, diagnostics);
+					}
+					partitions = partitioner.partition(threads);
+				}
 		
-		if (main.globalErrorsCount > 0) {
-			//throw new CompilerException(errorOutputStream.buffer.toString());
-            mProject.getLogger().e(TAG, errorOutputStream.buffer.toString());
-            setIsCompilationSuccessful(false);
+				if (partitions.size() == 1) {
+					compile(environment, partitions.get(0), outputDir, diagnostics);
+				} else if (partitions.size() > 1) {
+					mProject.getLogger().d(TAG, "Compiling on " + partitions.size() + " threads");
+			
+					//workers share the read only name environment
+					ExecutorService executor = Executors.newFixedThreadPool(partitions.size());
+					try {
+						List<Future<?>> futures = new ArrayList<>();
+						for (List<File> partition : partitions) {
+							futures.add(executor.submit(() -> compile(environment, partition, outputDir, diagnostics)));
+						}
+						for (Future<?> future : futures) {
+							future.get();
+						}
+					} catch (InterruptedException | ExecutionException e) {
+						throw new CompilerException("Compilation failed: " + e.getMessage());
+					} finally {
+						executor.shutdown();
+					}
+				}
+			}
+		}
+		
+		//log in the same order regardless of how the files were split
+		Collections.sort(diagnostics, (a, b) -> {
+			int result = String.valueOf(a.getFile()).compareTo(String.valueOf(b.getFile()));
+			if (result == 0) {
+				result = Long.compare(a.getLine(), b.getLine());
+			}
+			return result != 0 ? result : Long.compare(a.getColumn(), b.getColumn());
+		});
+		for (CompilerDiagnostic diagnostic : diagnostics) {
+			if (diagnostic.isError()) {
+				mProject.getLogger().e(TAG, diagnostic.toString());
+			} else {
+				mProject.getLogger().w(TAG, diagnostic.toString());
+			}
+		}
+		int dropped = getDiagnosticCollector().getDroppedCount();
+		if (dropped > 0) {
+			mProject.getLogger().w(TAG, dropped + " more problem(s) not shown");
 		}
 		
         if(getIsCompilationSuccessful()){
             mProject.getLogger().d(TAG, "Merging modified java files");
             mergeClasses(filesToCompile);
+            saveClasspathSnapshot();
         }
 		
 	}
 	
+	/**
+     * Gets the files to compile that are under the project's source directory, leaving out
+     * generated sources.
+     */
+	private List<File> getProjectSources() {
+		String sourceDir = mProject.getJavaFile().getAbsolutePath() + File.separator;
+		List<File> sources = new ArrayList<>();
+		for (File file : filesToCompile) {
+			if (file.getAbsolutePath().startsWith(sourceDir)) {
+				sources.add(file);
+			}
+		}
+		return sources;
+	}
+	
+	/**
+     * Gets the project sources that were edited last, newest first. Generated sources are left
+     * out since they are rewritten on every build, their types are resolved from the gen
+     * directory by the name environment.
+     */
+	private List<File> getRecentlyEditedFiles(List<File> projectSources) {
+		List<File> sources = new ArrayList<>(projectSources);
+		Collections.sort(sources, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+		
+		List<File> recent = new ArrayList<>();
+		for (File file : sources) {
+			if (recent.size() >= MAX_RECENT_FILES
+					|| sources.get(0).lastModified() - file.lastModified() > RECENT_EDIT_WINDOW) {
+				break;
+			}
+			recent.add(file);
+		}
+		return recent;
+	}
+	
+	/**
+     * Compiles the files one dependency ordered batch at a time, each batch resolving the
+     * project types of earlier batches from the class files they produced. Only one batch
+     * is held in memory at once.
+     */
+	private void compileInBatches(ProjectNameEnvironment environment, List<File> files, long maxBatchSize,
+			File outputDir, List<CompilerDiagnostic> diagnostics) throws IOException {
+		List<List<File>> batches = new SourcePartitioner(files).getBatches(maxBatchSize);
+		mProject.getLogger().d(TAG, "Compiling in " + batches.size() + " batches to stay within the memory budget");
+		
+		for (int i = 0; i < batches.size(); i++) {
+			compile(environment, batches.get(i), outputDir, diagnostics);
+			if (!getIsCompilationSuccessful()) {
+				//later batches depend on this one, they would only repeat its errors
+				mProject.getLogger().w(TAG, "Skipping " + (batches.size() - i - 1) + " remaining batch(es)");
+				return;
+			}
+		}
+	}
+	
+	/**
+     * Compares the compile classpath with the one of the last successful build. Sources are
+     * only recompiled when the ABI of the classpath changed.
+     */
+	private void checkClasspath() {
+		try {
+			mClasspathSnapshot = ClasspathSnapshot.create(this, mProject);
+		} catch (IOException e) {
+			mProject.getLogger().w(TAG, "Unable to fingerprint the classpath: " + e.getMessage());
+			return;
+		}
+		
+		ClasspathSnapshot previous = ClasspathSnapshot.read(getClasspathSnapshotFile());
+		if (previous == null || !mClasspathSnapshot.hasSameAbi(previous)) {
+			mProject.getLogger().d(TAG, "Classpath ABI changed, recompiling all files.");
+			FileUtil.deleteFile(mProject.getOutputFile() + "/intermediate/java");
+			FileUtil.deleteFile(mProject.getOutputFile() + "/intermediate/classes");
+			return;
+		}
+		
+		//library dex is cached by jar content, so changed implementations get dexed again on their own
+		for (String library : mClasspathSnapshot.getImplementationChanges(previous)) {
+			mProject.getLogger().d(TAG, library + ": only the implementation changed, no need to recompile");
+		}
+	}
+	
+	private void saveClasspathSnapshot() {
+		if (mClasspathSnapshot == null) {
+			return;
+		}
+		try {
+			mClasspathSnapshot.write(getClasspathSnapshotFile());
+		} catch (IOException e) {
+			mProject.getLogger().w(TAG, "Unable to save the classpath snapshot: " + e.getMessage());
+		}
+	}
+	
+	/**
+     * Gets how much heap compilation may use, from the project or else half of the maximum
+     * heap. Files estimated to need more are compiled in batches that each fit, with the
+     * compiler state of a batch released before the next one starts.
+     */
+	private long getMemoryBudget() {
+		long budget = mProject.getCompilerMemoryBudget();
+		return budget > 0 ? budget : Runtime.getRuntime().maxMemory() / 2;
+	}
+	
+	private File getGenDir() {
+		return new File(mProject.getOutputFile() + "/gen");
+	}
+	
+	private File getClasspathSnapshotFile() {
+		return new File(mProject.getOutputFile() + "/intermediate/classpath.properties");
+	}
+	
+	private Map<String, String> getCompilerOptions() {
+		Map<String, String> options = new HashMap<>();
+		//TODO: make this user changeable
+		options.put(CompilerOptions.OPTION_Source, CompilerOptions.VERSION_1_8);
+		options.put(CompilerOptions.OPTION_Compliance, CompilerOptions.VERSION_1_8);
+		options.put(CompilerOptions.OPTION_TargetPlatform, CompilerOptions.VERSION_1_8);
+		options.put(CompilerOptions.OPTION_LineNumberAttribute, CompilerOptions.GENERATE);
+		options.put(CompilerOptions.OPTION_SourceFileAttribute, CompilerOptions.GENERATE);
+		options.put(CompilerOptions.OPTION_Process_Annotations, CompilerOptions.DISABLED);
+		options.put(CompilerOptions.OPTION_Encoding, "UTF-8");
+		//same as -nowarn, problems that are errors by default are still reported
+		Map<String, String> defaults = new CompilerOptions().getMap();
+		for (String warning : CompilerOptions.warningOptionNames()) {
+			if (!CompilerOptions.ERROR.equals(defaults.get(warning))) {
+				options.put(warning, CompilerOptions.IGNORE);
+			}
+		}
+		return options;
+	}
+	
+	/**
+     * Compiles the given files with a new compiler instance. Only the results of these files
+     * are kept, other project files the compiler pulls in from sources are owned by
+     * whichever call compiles them.
+     */
+	private void compile(ProjectNameEnvironment environment, List<File> files, File outputDir,
+			List<CompilerDiagnostic> diagnostics) {
+		Set<String> owned = new HashSet<>();
+		ICompilationUnit[] units = new ICompilationUnit[files.size()];
+		for (int i = 0; i < units.length; i++) {
+			String path = files.get(i).getAbsolutePath();
+			owned.add(path);
+			units[i] = new CompilationUnit(null, path, "UTF-8");
+		}
+		
+		ICompilerRequestor requestor = result -> {
+			if (owned.contains(new String(result.getFileName()))) {
+				acceptResult(result, environment, outputDir, diagnostics);
+			}
+		};
+		
+		org.eclipse.jdt.internal.compiler.Compiler compiler = new org.eclipse.jdt.internal.compiler.Compiler(
+				environment,
+				DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+				new CompilerOptions(getCompilerOptions()),
+				requestor,
+				new DefaultProblemFactory(Locale.getDefault()));
+		compiler.compile(units);
+	}
+	
+	/**
+     * Reports the problems of a compiled unit and writes its class files to the output directory,
+     * where later batches can resolve them from. Problems kept by the diagnostic collector are
+     * also added to the given list.
+     */
+	private void acceptResult(CompilationResult result, ProjectNameEnvironment environment, File outputDir,
+			List<CompilerDiagnostic> diagnostics) {
+		CategorizedProblem[] problems = result.getProblems();
+		if (problems != null) {
+			for (CategorizedProblem problem : problems) {
+				CompilerDiagnostic diagnostic = CompilerDiagnostic.from(problem);
+				if (report(diagnostic)) {
+					diagnostics.add(diagnostic);
+				}
+			}
+		}
+		if (result.hasErrors()) {
+			setIsCompilationSuccessful(false);
+			return;
+		}
+		
+		for (ClassFile classFile : result.getClassFiles()) {
+			String name = new String(classFile.fileName());
+			File output = new File(outputDir, name + ".class");
+			output.getParentFile().mkdirs();
+			try (FileOutputStream out = new FileOutputStream(output)) {
+				out.write(classFile.getBytes());
+				environment.addCompiledType(name, output);
+				//the dexer hashes class files to find the changed ones
+				Fingerprint.invalidate(output);
+			} catch (IOException e) {
+				mProject.getLogger().e(TAG, e.getMessage());
+				setIsCompilationSuccessful(false);
+			}
+		}
+	}
+	
 	/**
      * Finds all Java source code files in a given directory.
      *
@@ -219,67 +508,21 @@ public class IncrementalECJCompiler extends Compiler {
     }
 	
 	/**
-     * Gets the package name of a specific Java source code file.
+     * Gets the path of a Java source code file relative to its source root, from its package.
      *
      * @param file The Java file
-     * @return The file's package name, in Java format
+     * @return The file's package directory and name, or null if it can't be read
      */
     private String getPackageName(File file) {
-        String packageName = "";
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-
-            while (!packageName.contains("package")) {
-                packageName = reader.readLine();
-				
-				if (packageName == null) {
-					packageName = "";
-				}
-            }
-
+        String packagePath;
+        try {
+            packagePath = SourceHeader.of(file).getPackagePath();
         } catch (IOException e) {
             mProject.getLogger().e(TAG, e.getMessage());
             setIsCompilationSuccessful(false);
-			return null;
-        }
-		
-		if (packageName == null) {
-			return null;
-		}
-
-        if (packageName.contains("package")) {
-
-            packageName = packageName.replace("package ", "")
-                    .replace(";", ".")
-                    .replace(".", "/");
-
-            if (!packageName.endsWith("/")) {
-                packageName = packageName.concat("/");
-            }
-
-            return packageName + file.getName();
-        }
-
-        return null;
-    }
-	
-	private class CompilerOutputStream extends OutputStream {
-    private final StringBuffer buffer;
-    
-    public CompilerOutputStream(StringBuffer buffer) {
-        this.buffer = buffer;
-    }
-
-    @Override
-    public void write(int b) {
-        if (b == '\n') {
-            buffer.append((char) b);
-            mProject.getLogger().e(TAG, buffer.toString());
-            buffer.setLength(0);  // Limpa o buffer após o log
-        } else {
-            buffer.append((char) b);
+            return null;
         }
+        return packagePath.isEmpty() ? file.getName() : packagePath + "/" + file.getName();
     }
-}
 
 }
\ No newline at end of file
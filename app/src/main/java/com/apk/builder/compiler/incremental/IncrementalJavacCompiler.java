@@ -2,6 +2,9 @@ package com.tyron.compiler.incremental;
 
 import com.apk.builder.ApplicationLoader;
 import com.tyron.compiler.Compiler;
+import com.tyron.compiler.cache.Fingerprint;
+import com.tyron.compiler.cache.SourceHeader;
+import com.tyron.compiler.diagnostics.CompilerDiagnostic;
 import com.tyron.compiler.exception.CompilerException;
 import com.tyron.compiler.incremental.file.JavaFile;
 
@@ -14,11 +17,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 
 public class IncrementalJavacCompiler extends Compiler {
 
@@ -26,6 +26,7 @@ public class IncrementalJavacCompiler extends Compiler {
 
     private Project mProject;
     private List<File> filesToCompile;
+    private ClasspathSnapshot mClasspathSnapshot;
 
     public IncrementalJavacCompiler(Project project) {
         mProject = project;
@@ -33,6 +34,8 @@ public class IncrementalJavacCompiler extends Compiler {
 
     @Override
     public void prepare() {
+        checkClasspath();
+
         List<JavaFile> oldFiles = findJavaFiles(new File(mProject.getOutputFile() + "/intermediate/java"));
         List<JavaFile> newFiles = new ArrayList<>();
         newFiles.addAll(findJavaFiles(mProject.getJavaFile()));
@@ -45,66 +48,145 @@ public class IncrementalJavacCompiler extends Compiler {
     public void run() throws CompilerException, IOException {
         if (filesToCompile.isEmpty()) {
             mProject.getLogger().d(TAG, "Files are up to date, skipping compilation.");
+            saveClasspathSnapshot();
             return;
         }
 
         mProject.getLogger().d(TAG, "Found " + filesToCompile.size() + " file(s) that are modified.");
 
-        StringWriter errorWriter = new StringWriter();
-        PrintWriter errPrintWriter = new PrintWriter(errorWriter);
-
-        StringWriter outputWriter = new StringWriter();
-        PrintWriter outPrintWriter = new PrintWriter(outputWriter);
-
-        List<String> args = new ArrayList<>();
-        args.add("-source");
-        args.add("17"); // Set source version
-        args.add("-target");
-        args.add("17"); // Set target version
-        args.add("-d");
-        args.add(mProject.getOutputFile() + "/intermediate/classes");
-        args.add("-classpath");
+        List<String> options = new ArrayList<>();
+        options.add("-source");
+        options.add("17"); // Set source version
+        options.add("-target");
+        options.add("17"); // Set target version
+        options.add("-d");
+        options.add(mProject.getOutputFile() + "/intermediate/classes");
+        options.add("-classpath");
 
         StringBuilder classpath = new StringBuilder();
         classpath.append(getAndroidJarFile().getAbsolutePath()).append(File.pathSeparator);
         for (Library library : mProject.getLibraries()) {
-            File classFile = library.getClassJarFile();
+            File classFile = getCompileJarFile(library);
             if (classFile.exists()) {
                 classpath.append(classFile.getAbsolutePath()).append(File.pathSeparator);
             }
         }
         classpath.append(getLambdaFactoryFile().getAbsolutePath());
-        args.add(classpath.toString());
+        options.add(classpath.toString());
 
-        args.add("-sourcepath");
-        args.add(""); // Empty sourcepath argument to compile all sources
-        for (File file : filesToCompile) {
-            args.add(file.getAbsolutePath());
+        options.add("-sourcepath");
+        options.add(""); // Empty sourcepath argument to compile all sources
+
+        JavacDaemon.Result result;
+        try {
+            result = JavacDaemon.get().compile(options, filesToCompile);
+        } catch (IOException e) {
+            mProject.getLogger().w(TAG, "javac daemon unavailable, running javac directly: " + e.getMessage());
+            runJavac(options);
+            result = null;
         }
 
+        if (result != null) {
+            boolean hasErrors = false;
+            for (CompilerDiagnostic diagnostic : result.getDiagnostics()) {
+                if (diagnostic.isError()) {
+                    hasErrors = true;
+                }
+                if (!report(diagnostic)) {
+                    continue;
+                }
+                if (diagnostic.isError()) {
+                    mProject.getLogger().e(TAG, diagnostic.toString());
+                } else if (diagnostic.getKind() == CompilerDiagnostic.Kind.WARNING) {
+                    mProject.getLogger().w(TAG, diagnostic.toString());
+                } else {
+                    mProject.getLogger().d(TAG, diagnostic.toString());
+                }
+            }
+            if (!result.isSuccess() || hasErrors) {
+                setIsCompilationSuccessful(false);
+                throw new CompilerException("Compilation failed, check logs for more details");
+            }
+        }
+
+        //javac wrote the class files, hashes remembered for their old contents are stale
+        Fingerprint.invalidateDirectory(new File(mProject.getOutputFile() + "/intermediate/classes"));
+
+        mProject.getLogger().d(TAG, "Merging modified java files");
+        mergeClasses(filesToCompile);
+        saveClasspathSnapshot();
+    }
+
+    /**
+     * Runs javac in a new process, used when the daemon can't be started.
+     */
+    private void runJavac(List<String> options) throws CompilerException, IOException {
         ProcessBuilder processBuilder = new ProcessBuilder(new File(ApplicationLoader.applicationContext.getFilesDir(), "jdk/bin/javac").getAbsolutePath());
-        processBuilder.command().addAll(args);
+        processBuilder.command().addAll(options);
+        for (File file : filesToCompile) {
+            processBuilder.command().add(file.getAbsolutePath());
+        }
         processBuilder.redirectErrorStream(true);
         Process process = processBuilder.start();
 
+        StringBuilder output = new StringBuilder();
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
             String line;
             while ((line = reader.readLine()) != null) {
-                outPrintWriter.println(line);
+                output.append(line).append('\n');
             }
         }
 
         try {
             int exitCode = process.waitFor();
             if (exitCode != 0) {
-                throw new CompilerException(errorWriter.toString());
+                setIsCompilationSuccessful(false);
+                throw new CompilerException(output.toString());
             }
         } catch (InterruptedException e) {
             throw new CompilerException("Compilation interrupted");
         }
+    }
 
-        mProject.getLogger().d(TAG, "Merging modified java files");
-        mergeClasses(filesToCompile);
+    /**
+     * Compares the compile classpath with the one of the last successful build. Sources are
+     * only recompiled when the ABI of the classpath changed.
+     */
+    private void checkClasspath() {
+        try {
+            mClasspathSnapshot = ClasspathSnapshot.create(this, mProject);
+        } catch (IOException e) {
+            mProject.getLogger().w(TAG, "Unable to fingerprint the classpath: " + e.getMessage());
+            return;
+        }
+
+        ClasspathSnapshot previous = ClasspathSnapshot.read(getClasspathSnapshotFile());
+        if (previous == null || !mClasspathSnapshot.hasSameAbi(previous)) {
+            mProject.getLogger().d(TAG, "Classpath ABI changed, recompiling all files.");
+            FileUtil.deleteFile(mProject.getOutputFile() + "/intermediate/java");
+            FileUtil.deleteFile(mProject.getOutputFile() + "/intermediate/classes");
+            return;
+        }
+
+        //library dex is cached by jar content, so changed implementations get dexed again on their own
+        for (String library : mClasspathSnapshot.getImplementationChanges(previous)) {
+            mProject.getLogger().d(TAG, library + ": only the implementation changed, no need to recompile");
+        }
+    }
+
+    private void saveClasspathSnapshot() {
+        if (mClasspathSnapshot == null) {
+            return;
+        }
+        try {
+            mClasspathSnapshot.write(getClasspathSnapshotFile());
+        } catch (IOException e) {
+            mProject.getLogger().w(TAG, "Unable to save the classpath snapshot: " + e.getMessage());
+        }
+    }
+
+    private File getClasspathSnapshotFile() {
+        return new File(mProject.getOutputFile() + "/intermediate/classpath.properties");
     }
 
     private List<JavaFile> findJavaFiles(File input) {
@@ -203,41 +285,14 @@ public class IncrementalJavacCompiler extends Compiler {
     }
 
     private String getPackageName(File file) {
-        String packageName = "";
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-
-            while (!packageName.contains("package")) {
-                packageName = reader.readLine();
-
-                if (packageName == null) {
-                    packageName = "";
-                }
-            }
-
+        String packagePath;
+        try {
+            packagePath = SourceHeader.of(file).getPackagePath();
         } catch (IOException e) {
             mProject.getLogger().e(TAG, e.getMessage());
             return null;
         }
-
-        if (packageName == null) {
-            return null;
-        }
-
-        if (packageName.contains("package")) {
-
-            packageName = packageName.replace("package ", "")
-                    .replace(";", ".")
-                    .replace(".", "/");
-
-            if (!packageName.endsWith("/")) {
-                packageName = packageName.concat("/");
-            }
-
-            return packageName + file.getName();
-        }
-
-        return null;
+        return packagePath.isEmpty() ? file.getName() : packagePath + "/" + file.getName();
     }
 
     private class CompilerOutputStream extends OutputStream {
@@ -0,0 +1,234 @@
+package com.tyron.compiler.incremental;
+
+import com.apk.builder.ApplicationLoader;
+import com.tyron.compiler.diagnostics.CompilerDiagnostic;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps a javac JVM running on the bundled JDK between builds. javax.tools is
+ * not available on Android, so the host side of the daemon is shipped as the
+ * asset {@code javac/JavacDaemon.java} and compiled with the JDK the first
+ * time it is needed. From then on every build only sends its options and
+ * files to the warm JVM and reads back structured diagnostics.
+ */
+public class JavacDaemon {
+
+    private static final String ASSET = "javac/JavacDaemon.java";
+    private static final String MAIN_CLASS = "JavacDaemon";
+
+    private static JavacDaemon sInstance;
+
+    private final Process mProcess;
+    private final PrintWriter mWriter;
+    private final BufferedReader mReader;
+
+    public static class Result {
+
+        private final boolean mSuccess;
+        private final List<CompilerDiagnostic> mDiagnostics;
+
+        Result(boolean success, List<CompilerDiagnostic> diagnostics) {
+            mSuccess = success;
+            mDiagnostics = diagnostics;
+        }
+
+        public boolean isSuccess() {
+            return mSuccess;
+        }
+
+        public List<CompilerDiagnostic> getDiagnostics() {
+            return mDiagnostics;
+        }
+    }
+
+    /**
+     * @return the running daemon, starting it if needed
+     * @throws IOException if the daemon can't be compiled or started, callers
+     *                     should fall back to running javac directly
+     */
+    public static synchronized JavacDaemon get() throws IOException {
+        if (sInstance == null || !sInstance.isAlive()) {
+            sInstance = new JavacDaemon(prepareClasses());
+        }
+        return sInstance;
+    }
+
+    public static synchronized void shutdown() {
+        if (sInstance != null) {
+            sInstance.destroy();
+            sInstance = null;
+        }
+    }
+
+    private JavacDaemon(File classesDir) throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder(
+                new File(getJdkDir(), "bin/java").getAbsolutePath(),
+                "-cp", classesDir.getAbsolutePath(),
+                MAIN_CLASS);
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        mProcess = processBuilder.start();
+        mWriter = new PrintWriter(new OutputStreamWriter(mProcess.getOutputStream(), StandardCharsets.UTF_8));
+        mReader = new BufferedReader(new InputStreamReader(mProcess.getInputStream(), StandardCharsets.UTF_8));
+
+        String status = mReader.readLine();
+        if (!"READY".equals(status)) {
+            destroy();
+            throw new IOException("javac daemon failed to start: " + status);
+        }
+    }
+
+    /**
+     * Compiles the given files. Only one compilation runs at a time.
+     *
+     * @throws IOException if the daemon died, it is stopped and the next call
+     *                     to {@link #get()} starts a new one
+     */
+    public synchronized Result compile(List<String> options, List<File> files) throws IOException {
+        for (String option : options) {
+            mWriter.println("O " + option);
+        }
+        for (File file : files) {
+            mWriter.println("F " + file.getAbsolutePath());
+        }
+        mWriter.println("COMPILE");
+        mWriter.flush();
+        if (mWriter.checkError()) {
+            destroy();
+            throw new IOException("javac daemon is not running");
+        }
+
+        List<CompilerDiagnostic> diagnostics = new ArrayList<>();
+        String line;
+        while ((line = mReader.readLine()) != null) {
+            if (line.startsWith("D ")) {
+                diagnostics.add(parseDiagnostic(line.substring(2)));
+            } else if (line.equals("OK") || line.equals("FAILED")) {
+                return new Result(line.equals("OK"), diagnostics);
+            }
+        }
+        destroy();
+        throw new IOException("javac daemon exited while compiling");
+    }
+
+    private boolean isAlive() {
+        try {
+            mProcess.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private void destroy() {
+        mWriter.close();
+        mProcess.destroy();
+    }
+
+    private static CompilerDiagnostic parseDiagnostic(String line) {
+        String[] parts = line.split("\t", 5);
+        CompilerDiagnostic.Kind kind;
+        switch (parts[0]) {
+            case "ERROR":
+                kind = CompilerDiagnostic.Kind.ERROR;
+                break;
+            case "WARNING":
+            case "MANDATORY_WARNING":
+                kind = CompilerDiagnostic.Kind.WARNING;
+                break;
+            default:
+                kind = CompilerDiagnostic.Kind.NOTE;
+                break;
+        }
+        String file = parts[1].isEmpty() ? null : parts[1];
+        return new CompilerDiagnostic(kind, file,
+                Long.parseLong(parts[2]), Long.parseLong(parts[3]), unescape(parts[4]));
+    }
+
+    private static String unescape(String message) {
+        StringBuilder sb = new StringBuilder(message.length());
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\\' && i + 1 < message.length()) {
+                char next = message.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Extracts the daemon source and compiles it with the JDK if it changed
+     * since the last time.
+     */
+    private static File prepareClasses() throws IOException {
+        File dir = new File(ApplicationLoader.applicationContext.getFilesDir(), "javac-daemon");
+        File source = new File(dir, MAIN_CLASS + ".java");
+        File classesDir = new File(dir, "classes");
+        File classFile = new File(classesDir, MAIN_CLASS + ".class");
+
+        byte[] asset;
+        try (InputStream in = ApplicationLoader.applicationContext.getAssets().open(ASSET)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, length);
+            }
+            asset = bytes.toByteArray();
+        }
+
+        if (!source.exists() || !Arrays.equals(asset, Files.readAllBytes(source.toPath()))) {
+            classesDir.mkdirs();
+            try (OutputStream out = new FileOutputStream(source)) {
+                out.write(asset);
+            }
+            classFile.delete();
+        }
+
+        if (!classFile.exists()) {
+            classesDir.mkdirs();
+            Process process = new ProcessBuilder(
+                    new File(getJdkDir(), "bin/javac").getAbsolutePath(),
+                    "-d", classesDir.getAbsolutePath(),
+                    source.getAbsolutePath())
+                    .redirectErrorStream(true)
+                    .start();
+            StringBuilder output = new StringBuilder();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    output.append(line).append('\n');
+                }
+            }
+            try {
+                if (process.waitFor() != 0 || !classFile.exists()) {
+                    throw new IOException("Unable to compile the javac daemon:\n" + output);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while compiling the javac daemon");
+            }
+        }
+        return classesDir;
+    }
+
+    private static File getJdkDir() {
+        return new File(ApplicationLoader.applicationContext.getFilesDir(), "jdk");
+    }
+}
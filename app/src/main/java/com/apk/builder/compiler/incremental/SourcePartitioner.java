@@ -0,0 +1,355 @@
+package com.tyron.compiler.incremental;
+
+import com.tyron.compiler.cache.SourceHeader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Splits the files to compile into groups that can be compiled independently.
+ * Files that reference each other, directly or through other files being
+ * compiled, always end up in the same group, and groups are balanced by size.
+ *
+ * <p>The result only depends on the given files, never on the order they
+ * were found in or on timing, so the compiled output is the same for any
+ * number of groups.
+ *
+ * <p>Files that reference no other file but are referenced by several, like
+ * R.java, would join all of their dependents into one group. They are left
+ * out of the groups and returned by {@link #getSharedLeaves()} instead, to be
+ * compiled first so the groups resolve them from their class files.
+ *
+ * <p>Files can also be split into dependency ordered batches, so that a
+ * project too large to compile at once can be compiled a batch at a time.
+ */
+public class SourcePartitioner {
+
+    private final List<File> mFiles;
+    private final int[] mParents;
+    private int[][] mDependencies;
+
+    public SourcePartitioner(List<File> files) {
+        mFiles = new ArrayList<>(files);
+        Collections.sort(mFiles);
+        mParents = new int[mFiles.size()];
+        for (int i = 0; i < mParents.length; i++) {
+            mParents[i] = i;
+        }
+    }
+
+    /**
+     * @return the files that reference no other file and are referenced by at
+     * least two, which {@link #partition(int)} leaves out
+     */
+    public List<File> getSharedLeaves() throws IOException {
+        boolean[] shared = findSharedLeaves(getDependencies());
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < shared.length; i++) {
+            if (shared[i]) {
+                files.add(mFiles.get(i));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param maxPartitions upper bound of groups to return
+     * @return the files except the {@link #getSharedLeaves() shared leaves},
+     * split into at most the given number of groups
+     */
+    public List<List<File>> partition(int maxPartitions) throws IOException {
+        int[][] dependencies = getDependencies();
+        boolean[] sharedLeaves = findSharedLeaves(dependencies);
+        for (int i = 0; i < dependencies.length; i++) {
+            for (int dependency : dependencies[i]) {
+                // only followed from the dependents, a shared leaf doesn't join them
+                if (!sharedLeaves[dependency]) {
+                    union(i, dependency);
+                }
+            }
+        }
+
+        // group the files by component, components are ordered by their first file
+        Map<Integer, List<File>> components = new HashMap<>();
+        List<List<File>> ordered = new ArrayList<>();
+        for (int i = 0; i < mFiles.size(); i++) {
+            if (sharedLeaves[i]) {
+                continue;
+            }
+            int root = find(i);
+            List<File> component = components.get(root);
+            if (component == null) {
+                component = new ArrayList<>();
+                components.put(root, component);
+                ordered.add(component);
+            }
+            component.add(mFiles.get(i));
+        }
+
+        // largest components first, each to the currently smallest partition
+        List<List<File>> sorted = new ArrayList<>(ordered);
+        Collections.sort(sorted, (a, b) -> Long.compare(getSize(b), getSize(a)));
+
+        int count = Math.min(maxPartitions, sorted.size());
+        List<List<File>> partitions = new ArrayList<>();
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (List<File> component : sorted) {
+            int smallest = 0;
+            for (int i = 1; i < count; i++) {
+                if (sizes[i] < sizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            partitions.get(smallest).addAll(component);
+            sizes[smallest] += getSize(component);
+        }
+        return partitions;
+    }
+
+    /**
+     * Splits the files into batches that can be compiled one after another,
+     * each against the classes of the batches before it. Files that depend
+     * on each other stay in the same batch, even if that exceeds the size.
+     *
+     * @param maxBatchSize upper bound of the summed source sizes of a batch
+     * @return the batches, dependencies first
+     */
+    public List<List<File>> getBatches(long maxBatchSize) throws IOException {
+        List<List<File>> batches = new ArrayList<>();
+        List<File> batch = new ArrayList<>();
+        long batchSize = 0;
+        for (List<File> component : getStronglyConnectedComponents(getDependencies())) {
+            long size = getSize(component);
+            if (!batch.isEmpty() && batchSize + size > maxBatchSize) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchSize = 0;
+            }
+            batch.addAll(component);
+            batchSize += size;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private static boolean[] findSharedLeaves(int[][] dependencies) {
+        int[] dependents = new int[dependencies.length];
+        for (int[] fileDependencies : dependencies) {
+            for (int dependency : fileDependencies) {
+                dependents[dependency]++;
+            }
+        }
+        boolean[] shared = new boolean[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            shared[i] = dependencies[i].length == 0 && dependents[i] >= 2;
+        }
+        return shared;
+    }
+
+    /**
+     * @return for each file, the sorted indices of the files it references
+     */
+    private int[][] getDependencies() throws IOException {
+        if (mDependencies != null) {
+            return mDependencies;
+        }
+
+        SourceHeader[] headers = new SourceHeader[mFiles.size()];
+        // the same simple name may be declared in several packages
+        Map<String, List<Integer>> typeNames = new HashMap<>();
+        Map<String, Integer> qualifiedNames = new HashMap<>();
+        for (int i = 0; i < mFiles.size(); i++) {
+            headers[i] = SourceHeader.of(mFiles.get(i));
+            // a file can declare more top level types than the one it is named after
+            Set<String> names = new HashSet<>(headers[i].getTypeNames());
+            String name = mFiles.get(i).getName();
+            names.add(name.substring(0, name.length() - ".java".length()));
+            for (String typeName : names) {
+                List<Integer> files = typeNames.get(typeName);
+                if (files == null) {
+                    files = new ArrayList<>();
+                    typeNames.put(typeName, files);
+                }
+                files.add(i);
+                String packageName = headers[i].getPackageName();
+                qualifiedNames.put(packageName.isEmpty() ? typeName : packageName + "." + typeName, i);
+            }
+        }
+
+        int[][] dependencies = new int[mFiles.size()][];
+        for (int i = 0; i < mFiles.size(); i++) {
+            Set<Integer> referenced = new TreeSet<>();
+            // simple names a single type import resolves, to a project file or not
+            Set<String> imported = new HashSet<>();
+            Set<String> onDemandPackages = new HashSet<>();
+            for (String name : headers[i].getImports()) {
+                if (name.endsWith(".*")) {
+                    String packageName = name.substring(0, name.length() - 2);
+                    onDemandPackages.add(packageName);
+                    // imports of the member types of a project type
+                    Integer file = qualifiedNames.get(packageName);
+                    if (file != null) {
+                        referenced.add(file);
+                    }
+                } else {
+                    imported.add(name.substring(name.lastIndexOf('.') + 1));
+                    Integer file = findFile(qualifiedNames, name);
+                    if (file != null) {
+                        referenced.add(file);
+                    }
+                }
+            }
+            for (String name : headers[i].getStaticImports()) {
+                // the last part is a member or *, never the type itself
+                Integer file = findFile(qualifiedNames, name.substring(0, Math.max(0, name.lastIndexOf('.'))));
+                if (file != null) {
+                    referenced.add(file);
+                }
+            }
+
+            String packageName = headers[i].getPackageName();
+            for (String identifier : headers[i].getIdentifiers()) {
+                List<Integer> others = typeNames.get(identifier);
+                if (others == null || imported.contains(identifier)) {
+                    continue;
+                }
+                List<Integer> visible = new ArrayList<>();
+                for (int other : others) {
+                    String otherPackage = headers[other].getPackageName();
+                    if (otherPackage.equals(packageName) || onDemandPackages.contains(otherPackage)) {
+                        visible.add(other);
+                    }
+                }
+                // otherwise it is a qualified name or not a type at all, assume the worst
+                referenced.addAll(visible.isEmpty() ? others : visible);
+            }
+            referenced.remove(i);
+            dependencies[i] = new int[referenced.size()];
+            int j = 0;
+            for (int dependency : referenced) {
+                dependencies[i][j++] = dependency;
+            }
+        }
+        mDependencies = dependencies;
+        return dependencies;
+    }
+
+    /**
+     * Finds the file declaring a qualified type name, which can also name a
+     * member type like {@code com.example.Outer.Inner}.
+     */
+    private static Integer findFile(Map<String, Integer> qualifiedNames, String name) {
+        while (!name.isEmpty()) {
+            Integer file = qualifiedNames.get(name);
+            if (file != null) {
+                return file;
+            }
+            name = name.substring(0, Math.max(0, name.lastIndexOf('.')));
+        }
+        return null;
+    }
+
+    /**
+     * Tarjan's algorithm, without recursion since projects can have long
+     * dependency chains. A component is only emitted after every component it
+     * depends on.
+     */
+    private List<List<File>> getStronglyConnectedComponents(int[][] dependencies) {
+        int count = dependencies.length;
+        int[] indices = new int[count];
+        int[] lowLinks = new int[count];
+        int[] nextEdges = new int[count];
+        boolean[] onStack = new boolean[count];
+        Arrays.fill(indices, -1);
+
+        Deque<Integer> stack = new ArrayDeque<>();
+        Deque<Integer> calls = new ArrayDeque<>();
+        List<List<File>> components = new ArrayList<>();
+        int index = 0;
+
+        for (int root = 0; root < count; root++) {
+            if (indices[root] != -1) {
+                continue;
+            }
+            indices[root] = lowLinks[root] = index++;
+            stack.push(root);
+            onStack[root] = true;
+            calls.push(root);
+
+            while (!calls.isEmpty()) {
+                int node = calls.peek();
+                if (nextEdges[node] < dependencies[node].length) {
+                    int next = dependencies[node][nextEdges[node]++];
+                    if (indices[next] == -1) {
+                        indices[next] = lowLinks[next] = index++;
+                        stack.push(next);
+                        onStack[next] = true;
+                        calls.push(next);
+                    } else if (onStack[next]) {
+                        lowLinks[node] = Math.min(lowLinks[node], indices[next]);
+                    }
+                    continue;
+                }
+
+                calls.pop();
+                if (!calls.isEmpty()) {
+                    int parent = calls.peek();
+                    lowLinks[parent] = Math.min(lowLinks[parent], lowLinks[node]);
+                }
+                if (lowLinks[node] == indices[node]) {
+                    List<File> component = new ArrayList<>();
+                    int member;
+                    do {
+                        member = stack.pop();
+                        onStack[member] = false;
+                        component.add(mFiles.get(member));
+                    } while (member != node);
+                    Collections.sort(component);
+                    components.add(component);
+                }
+            }
+        }
+        return components;
+    }
+
+    private int find(int index) {
+        while (mParents[index] != index) {
+            mParents[index] = mParents[mParents[index]];
+            index = mParents[index];
+        }
+        return index;
+    }
+
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA != rootB) {
+            // keep the smallest index as root so the result doesn't depend on visiting order
+            mParents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    private static long getSize(List<File> files) {
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,321 @@
+package com.tyron.compiler.patch;
+
+import com.apk.builder.model.Library;
+import com.apk.builder.model.Project;
+import com.tyron.compiler.Compiler;
+import com.tyron.compiler.cache.Fingerprint;
+import com.tyron.compiler.dex.D8DiagnosticsHandler;
+import com.tyron.compiler.dex.DexOutput;
+import com.tyron.compiler.exception.CompilerException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.android.tools.r8.CompilationFailedException;
+import com.android.tools.r8.CompilationMode;
+import com.android.tools.r8.D8;
+import com.android.tools.r8.D8Command;
+import com.android.tools.r8.origin.PathOrigin;
+
+/**
+ * Writes {@code bin/patch.zip}, which holds only what changed since the
+ * deployed build: the dex of changed classes and the changed entries of the
+ * resource apk, resources.arsc, res/ and assets/. A loader in a running debug
+ * app can apply it instead of reinstalling the whole APK.
+ *
+ * <p>{@link #resetBaseline(Project)} makes the last build the deployed build,
+ * without it the first build is. Every later patch is relative to that
+ * build, so a patch replaces the previous one instead of being applied on
+ * top of it. Minified builds don't get patches, R8 output has no dex per
+ * class and its names change from build to build. Neither do builds whose
+ * libraries or manifest changed, a running app can't apply those. Such a
+ * build becomes the deployed build, its APK has to be installed.
+ *
+ * <p>The patch has a {@code patch.properties} entry with the hash of the
+ * baseline it applies to, {@code class:<name>} and {@code resource:<path>}
+ * hashes of what changed and {@code removed-class:<name>} and
+ * {@code removed-resource:<path>} keys for what was deleted.
+ */
+public class DeltaPatchBuilder extends Compiler {
+
+    private static final String TAG = "Delta Patch";
+
+    public static final String PATCH_FILE_NAME = "patch.zip";
+    private static final String MANIFEST_ENTRY = "patch.properties";
+
+    private static final String BASELINE_KEY = "baseline";
+    private static final String CLASS_KEY_PREFIX = "class:";
+    private static final String RESOURCE_KEY_PREFIX = "resource:";
+    private static final String LIBRARY_KEY_PREFIX = "library:";
+    private static final String MANIFEST_KEY = RESOURCE_KEY_PREFIX + "AndroidManifest.xml";
+    private static final String REMOVED_PREFIX = "removed-";
+
+    private final Project mProject;
+
+    public DeltaPatchBuilder(Project project) {
+        mProject = project;
+        setTag(TAG);
+    }
+
+    /**
+     * Makes the last build the deployed build, call it after installing its
+     * full APK. If the last build recorded nothing, the next one is taken.
+     */
+    public static void resetBaseline(Project project) {
+        File baselineFile = getBaselineFile(project);
+        baselineFile.delete();
+        File lastBuildFile = getLastBuildFile(project);
+        if (lastBuildFile.exists() && !lastBuildFile.renameTo(baselineFile)) {
+            lastBuildFile.delete();
+        }
+        new File(project.getOutputFile(), "bin/" + PATCH_FILE_NAME).delete();
+    }
+
+    @Override
+    public void prepare() {
+
+    }
+
+    @Override
+    public void run() throws CompilerException, IOException {
+        onProgressUpdate("Running...");
+
+        File patchFile = new File(mProject.getOutputFile(), "bin/" + PATCH_FILE_NAME);
+        //a failed build must not leave its state to become the baseline
+        getLastBuildFile(mProject).delete();
+        if (mProject.isMinifyEnabled()) {
+            //the minified APK has to be installed, later patches can't be relative to the old one
+            resetBaseline(mProject);
+            mProject.getLogger().w(TAG, "Patches are not written for minified builds, install the APK instead");
+            return;
+        }
+
+        try {
+            writePatch(patchFile);
+        } catch (IOException e) {
+            patchFile.delete();
+            mProject.getLogger().e(TAG, "Unable to write the patch: " + e.getMessage());
+            setIsCompilationSuccessful(false);
+        }
+    }
+
+    private void writePatch(File patchFile) throws IOException {
+        File binDir = patchFile.getParentFile();
+        File resourcesFile = new File(binDir, "generated.apk.res");
+        File baselineFile = getBaselineFile(mProject);
+
+        Properties current = new Properties();
+        File classesDir = new File(mProject.getOutputFile(), "intermediate/classes");
+        for (File classFile : getClassFiles(classesDir)) {
+            String path = classFile.getAbsolutePath();
+            String name = path.substring(classesDir.getAbsolutePath().length() + 1, path.length() - ".class".length());
+            current.setProperty(CLASS_KEY_PREFIX + name, Fingerprint.of(classFile));
+        }
+        if (resourcesFile.exists()) {
+            try (ZipFile zip = new ZipFile(resourcesFile)) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory()) {
+                        //the central directory already has a checksum of every entry
+                        current.setProperty(RESOURCE_KEY_PREFIX + entry.getName(),
+                                entry.getSize() + ":" + Long.toHexString(entry.getCrc()));
+                    }
+                }
+            }
+        }
+
+        for (Library library : mProject.getLibraries()) {
+            if (library.getClassJarFile().exists()) {
+                current.setProperty(LIBRARY_KEY_PREFIX + library.getName(), Fingerprint.of(library.getClassJarFile()));
+            }
+        }
+
+        writeProperties(getLastBuildFile(mProject), current);
+
+        if (!baselineFile.exists()) {
+            writeProperties(baselineFile, current);
+            patchFile.delete();
+            mProject.getLogger().d(TAG, "Recorded this build as the deployed build, the next builds write patches against it");
+            return;
+        }
+        Properties baseline = new Properties();
+        try (InputStream in = new FileInputStream(baselineFile)) {
+            baseline.load(in);
+        }
+
+        String reinstallReason = getReinstallReason(baseline, current);
+        if (reinstallReason != null) {
+            //this build's APK has to be installed, later patches are relative to it
+            resetBaseline(mProject);
+            mProject.getLogger().w(TAG, reinstallReason + " since the deployed build, install the APK instead of a patch");
+            return;
+        }
+
+        Properties manifest = new Properties();
+        manifest.setProperty(BASELINE_KEY, Fingerprint.of(baselineFile));
+        List<String> changedClasses = new ArrayList<>();
+        List<String> changedResources = new ArrayList<>();
+        for (String key : new TreeSet<>(current.stringPropertyNames())) {
+            if (current.getProperty(key).equals(baseline.getProperty(key))) {
+                continue;
+            }
+            manifest.setProperty(key, current.getProperty(key));
+            if (key.startsWith(CLASS_KEY_PREFIX)) {
+                changedClasses.add(key.substring(CLASS_KEY_PREFIX.length()));
+            } else {
+                changedResources.add(key.substring(RESOURCE_KEY_PREFIX.length()));
+            }
+        }
+        int removed = 0;
+        for (String key : baseline.stringPropertyNames()) {
+            if (!current.containsKey(key)) {
+                manifest.setProperty(REMOVED_PREFIX + key, "");
+                removed++;
+            }
+        }
+
+        if (changedClasses.isEmpty() && changedResources.isEmpty() && removed == 0) {
+            patchFile.delete();
+            mProject.getLogger().d(TAG, "No changes since the deployed build");
+            return;
+        }
+
+        List<byte[]> dexFiles = new ArrayList<>();
+        if (!changedClasses.isEmpty()) {
+            //the incremental dexer keeps a dex of every class, only those of the changed ones are merged
+            File dexDir = new File(mProject.getOutputFile(), "intermediate/dex/classes");
+            for (String name : changedClasses) {
+                if (!new File(dexDir, name + ".dex").exists()) {
+                    throw new FileNotFoundException("No dex of " + name + " in " + dexDir);
+                }
+            }
+            DexOutput output = new DexOutput();
+            try {
+                D8Command.Builder builder = D8Command.builder(new D8DiagnosticsHandler(getDiagnosticCollector(), mProject.getLogger(), TAG))
+                        .setMode(CompilationMode.RELEASE)
+                        .setMinApiLevel(mProject.getMinSdk())
+                        .setProgramConsumer(output);
+                for (String name : changedClasses) {
+                    File dexFile = new File(dexDir, name + ".dex");
+                    builder.addDexProgramData(Files.readAllBytes(dexFile.toPath()), new PathOrigin(dexFile.toPath()));
+                }
+                D8.run(builder.build());
+            } catch (CompilationFailedException e) {
+                patchFile.delete();
+                setIsCompilationSuccessful(false);
+                return;
+            }
+            dexFiles = output.getDexFiles();
+        }
+
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(patchFile))) {
+            for (int i = 0; i < dexFiles.size(); i++) {
+                out.putNextEntry(new ZipEntry(DexOutput.getDexFileName(i)));
+                out.write(dexFiles.get(i));
+                out.closeEntry();
+            }
+            if (!changedResources.isEmpty()) {
+                try (ZipFile zip = new ZipFile(resourcesFile)) {
+                    byte[] buffer = new byte[8192];
+                    for (String name : changedResources) {
+                        out.putNextEntry(new ZipEntry(name));
+                        try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+                            int length;
+                            while ((length = in.read(buffer)) != -1) {
+                                out.write(buffer, 0, length);
+                            }
+                        }
+                        out.closeEntry();
+                    }
+                }
+            }
+            out.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            manifest.store(bytes, null);
+            bytes.writeTo(out);
+            out.closeEntry();
+        }
+
+        mProject.getLogger().d(TAG, "Wrote " + patchFile.getName() + " with " + changedClasses.size()
+                + " changed class(es), " + changedResources.size() + " changed resource(s) and "
+                + removed + " removal(s)");
+    }
+
+    /**
+     * Library dex and the manifest can't be replaced in a running app.
+     *
+     * @return what changed that needs a reinstall, or null if a patch can be applied
+     */
+    private static String getReinstallReason(Properties baseline, Properties current) {
+        if (!String.valueOf(current.getProperty(MANIFEST_KEY)).equals(String.valueOf(baseline.getProperty(MANIFEST_KEY)))) {
+            return "AndroidManifest.xml changed";
+        }
+        Set<String> libraries = new TreeSet<>();
+        for (String key : current.stringPropertyNames()) {
+            if (key.startsWith(LIBRARY_KEY_PREFIX)) {
+                libraries.add(key);
+            }
+        }
+        for (String key : baseline.stringPropertyNames()) {
+            if (key.startsWith(LIBRARY_KEY_PREFIX)) {
+                libraries.add(key);
+            }
+        }
+        for (String key : libraries) {
+            if (!String.valueOf(current.getProperty(key)).equals(String.valueOf(baseline.getProperty(key)))) {
+                return "Library " + key.substring(LIBRARY_KEY_PREFIX.length()) + " changed";
+            }
+        }
+        return null;
+    }
+
+    private static File getBaselineFile(Project project) {
+        return new File(project.getOutputFile(), "intermediate/patch/baseline.properties");
+    }
+
+    private static File getLastBuildFile(Project project) {
+        return new File(project.getOutputFile(), "intermediate/patch/last.properties");
+    }
+
+    private void writeProperties(File file, Properties properties) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, null);
+        }
+    }
+
+    private List<File> getClassFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        File[] fileArr = dir.listFiles();
+        if (fileArr == null) {
+            return files;
+        }
+
+        for (File file : fileArr) {
+            if (file.isDirectory()) {
+                files.addAll(getClassFiles(file));
+            } else if (file.getName().endsWith(".class")) {
+                files.add(file);
+            }
+        }
+
+        return files;
+    }
+}
@@ -0,0 +1,251 @@
+package com.tyron.compiler.zip;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read only view of a zip archive that is memory-mapped once and keeps an
+ * in-memory index of its central directory, so entries can be looked up by
+ * name without rescanning the archive.
+ */
+public class MappedZipFile implements Closeable {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private static final int EOCD_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    public static class Entry {
+
+        private final String mName;
+        private final int mMethod;
+        private final long mCrc;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+
+        public Entry(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCrc = crc;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCrc() {
+            return mCrc;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return mName.endsWith("/");
+        }
+    }
+
+    private final File mFile;
+    private final MappedByteBuffer mBuffer;
+    private final Map<String, Entry> mEntries;
+
+    public MappedZipFile(File file) throws IOException {
+        this(file, true);
+    }
+
+    /**
+     * @param readCentralDirectory whether to index the entries of the archive, callers
+     *                             that already know the entry offsets (eg. from a
+     *                             persisted index) can skip it
+     */
+    public MappedZipFile(File file, boolean readCentralDirectory) throws IOException {
+        mFile = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mEntries = readCentralDirectory
+                ? Collections.unmodifiableMap(readCentralDirectory())
+                : Collections.<String, Entry>emptyMap();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * @return all entries, in the order they appear in the central directory
+     */
+    public Collection<Entry> getEntries() {
+        return mEntries.values();
+    }
+
+    /**
+     * Gets the offset of the first byte of the entry's (possibly compressed) data.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        int offset = (int) entry.getLocalHeaderOffset();
+        if (mBuffer.getInt(offset) != LOCAL_SIGNATURE) {
+            throw new IOException(mFile.getName() + ": bad local header for " + entry.getName());
+        }
+        int nameLength = mBuffer.getShort(offset + 26) & 0xffff;
+        int extraLength = mBuffer.getShort(offset + 28) & 0xffff;
+        return offset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Returns the entry data exactly as it is stored in the archive, without inflating it.
+     */
+    public ByteBuffer getRawData(Entry entry) throws IOException {
+        int start = (int) getDataOffset(entry);
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.limit(start + (int) entry.getCompressedSize());
+        buffer.position(start);
+        return buffer.slice();
+    }
+
+    /**
+     * Reads and, if needed, inflates the contents of the given entry.
+     */
+    public byte[] getBytes(Entry entry) throws IOException {
+        ByteBuffer raw = getRawData(entry);
+        byte[] out = new byte[(int) entry.getSize()];
+
+        if (entry.getMethod() == METHOD_STORED) {
+            raw.get(out);
+            return out;
+        }
+        if (entry.getMethod() != METHOD_DEFLATED) {
+            throw new IOException(mFile.getName() + ": unsupported compression method "
+                    + entry.getMethod() + " for " + entry.getName());
+        }
+
+        byte[] input = new byte[raw.remaining()];
+        raw.get(input);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int read = 0;
+            while (read < out.length && !inflater.finished()) {
+                int count = inflater.inflate(out, read, out.length - read);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != out.length) {
+                throw new IOException(mFile.getName() + ": truncated entry " + entry.getName());
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(mFile.getName() + ": corrupt entry " + entry.getName(), e);
+        } finally {
+            inflater.end();
+        }
+        return out;
+    }
+
+    public byte[] getBytes(String name) throws IOException {
+        Entry entry = getEntry(name);
+        return entry == null ? null : getBytes(entry);
+    }
+
+    private Map<String, Entry> readCentralDirectory() throws IOException {
+        int eocd = findEndOfCentralDirectory();
+        if (eocd < 0) {
+            throw new IOException(mFile.getName() + ": not a zip file");
+        }
+
+        int count = mBuffer.getShort(eocd + 10) & 0xffff;
+        long size = mBuffer.getInt(eocd + 12) & 0xffffffffL;
+        long offset = mBuffer.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+            throw new IOException(mFile.getName() + ": zip64 archives are not supported");
+        }
+
+        Map<String, Entry> entries = new LinkedHashMap<>(count * 2);
+        int position = (int) offset;
+        for (int i = 0; i < count; i++) {
+            if (mBuffer.getInt(position) != CENTRAL_SIGNATURE) {
+                throw new IOException(mFile.getName() + ": bad central directory entry");
+            }
+            int method = mBuffer.getShort(position + 10) & 0xffff;
+            long crc = mBuffer.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = mBuffer.getInt(position + 20) & 0xffffffffL;
+            long uncompressedSize = mBuffer.getInt(position + 24) & 0xffffffffL;
+            int nameLength = mBuffer.getShort(position + 28) & 0xffff;
+            int extraLength = mBuffer.getShort(position + 30) & 0xffff;
+            int commentLength = mBuffer.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = mBuffer.getInt(position + 42) & 0xffffffffL;
+
+            byte[] name = new byte[nameLength];
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(position + 46);
+            buffer.get(name);
+
+            Entry entry = new Entry(new String(name, StandardCharsets.UTF_8), method, crc,
+                    compressedSize, uncompressedSize, localHeaderOffset);
+            entries.put(entry.getName(), entry);
+
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private int findEndOfCentralDirectory() {
+        int limit = mBuffer.capacity();
+        int stop = Math.max(0, limit - EOCD_SIZE - MAX_COMMENT_SIZE);
+        for (int position = limit - EOCD_SIZE; position >= stop; position--) {
+            if (mBuffer.getInt(position) == EOCD_SIGNATURE) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() {
+        // mapped buffers are released by the garbage collector, there is no
+        // portable way to unmap them eagerly
+    }
+}
@@ -57,6 +57,13 @@ public class Library {
 	    return new File(mPath, "classes.jar");
 	}
 	
+	/**
+	 * @return the consumer keep rules the library ships for apps that shrink it
+	 */
+	public File getProguardRulesFile() {
+	    return new File(mPath, "proguard.txt");
+	}
+	
 	public List<File> getDexFiles() {
 	    List<File> files = new ArrayList<>();
 	    File[] fileArr = mPath.listFiles();
@@ -27,6 +27,18 @@ public class Project {
 	
 	private File mAssetsFile;
 	
+	private File mStartupProfileFile;
+	
+	private File mBaselineProfileFile;
+	
+	private boolean mDeltaPatchEnabled;
+	
+	private boolean mMinifyEnabled;
+	
+	private File mProguardRulesFile;
+	
+	private long mCompilerMemoryBudget;
+	
 	private Logger mLogger;
 	
 	public Project() {
@@ -113,6 +125,73 @@ public class Project {
 		mAssetsFile = file;
 	}
 	
+	/**
+	 * @return the startup profile used to lay out the primary dex, or null
+	 */
+	public File getStartupProfileFile() {
+		return mStartupProfileFile;
+	}
+	
+	public void setStartupProfileFile(File file) {
+		mStartupProfileFile = file;
+	}
+	
+	/**
+	 * @return the human-readable ART profile compiled into the APK's baseline profile, or null
+	 */
+	public File getBaselineProfileFile() {
+		return mBaselineProfileFile;
+	}
+	
+	public void setBaselineProfileFile(File file) {
+		mBaselineProfileFile = file;
+	}
+	
+	/**
+	 * @return whether builds also write a patch with only what changed since the deployed build
+	 */
+	public boolean isDeltaPatchEnabled() {
+		return mDeltaPatchEnabled;
+	}
+	
+	public void setDeltaPatchEnabled(boolean enabled) {
+		mDeltaPatchEnabled = enabled;
+	}
+	
+	/**
+	 * @return whether the app is shrunk with R8 instead of being dexed with D8
+	 */
+	public boolean isMinifyEnabled() {
+		return mMinifyEnabled;
+	}
+	
+	public void setMinifyEnabled(boolean enabled) {
+		mMinifyEnabled = enabled;
+	}
+	
+	public File getProguardRulesFile() {
+		return mProguardRulesFile;
+	}
+	
+	public void setProguardRulesFile(File file) {
+		mProguardRulesFile = file;
+	}
+	
+	/**
+	 * @return how many bytes of heap compiling the sources may use, 0 for half of the maximum heap
+	 */
+	public long getCompilerMemoryBudget() {
+		return mCompilerMemoryBudget;
+	}
+	
+	/**
+	 * Sets how much heap compiling the sources may use. When the files to compile are
+	 * estimated to need more, they are compiled in batches that each fit.
+	 */
+	public void setCompilerMemoryBudget(long bytes) {
+		mCompilerMemoryBudget = bytes;
+	}
+	
 	public Logger getLogger() {
 		return mLogger;
 	}